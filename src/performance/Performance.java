@@ -16,9 +16,60 @@
  *  specific language governing permissions and limitations
  *  under the License.
  */
-import java.text.NumberFormat;
-import java.util.LinkedList;
-import java.util.Locale;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.lang.management.LockInfo;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MonitorInfo;
+import java.lang.management.ThreadInfo;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import jdk.jfr.Category;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Percentage;
+import jdk.jfr.Period;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
 
 /**
  * Simple performance monitoring and reporting.
@@ -29,10 +80,151 @@ import java.util.Locale;
 public class Performance {
     public static final int DEFAULT_SAMPLE_SIZE = 1000;
     public static final int DEFAULT_SAMPLING_INTERVAL = 1000;
+    // the jdk.jfr module is optional, e.g. in a jlink image
+    private static final boolean JFR_AVAILABLE = isJfrAvailable();
+
+    /**
+     * How the recent average and the remaining time are estimated.
+     */
+    public enum Estimator {
+        /** From the first and last sample of the sample window (default) */
+        WINDOW,
+        /** From the exponentially weighted moving average rate over 1 sampling interval, no sample window is kept */
+        EWMA_1,
+        /** From the exponentially weighted moving average rate over 5 sampling intervals, no sample window is kept */
+        EWMA_5,
+        /** From the exponentially weighted moving average rate over 15 sampling intervals, no sample window is kept */
+        EWMA_15
+    }
+
+    /**
+     * The time source of <code>Performance</code>, in milliseconds.
+     */
+    public interface Clock {
+        long millis();
+    }
+
+    /** <code>System.currentTimeMillis()</code>, the ETA will be wrong if the wall clock is adjusted. */
+    public static final Clock SYSTEM_CLOCK = new Clock() {
+        @Override
+        public long millis() {
+            return System.currentTimeMillis();
+        }
+    };
+
+    /**
+     * Monotonic clock based on <code>System.nanoTime()</code>, start from the wall clock time when the class is loaded.
+     * This is the default clock.
+     */
+    public static final Clock MONOTONIC_CLOCK = new Clock() {
+        private final long baseMillis = System.currentTimeMillis();
+        private final long baseNanos = System.nanoTime();
+
+        @Override
+        public long millis() {
+            return baseMillis + (System.nanoTime() - baseNanos) / 1000000;
+        }
+    };
+
+    /**
+     * A coarse monotonic clock updated by a background daemon thread, reading it is only a volatile read. Suitable for
+     * meters updated in a tight loop. Create one and share it among the meters, call {@link #stop()} when no longer
+     * needed.
+     */
+    public static class CoarseClock implements Clock {
+        private volatile long now;
+        private volatile boolean running = true;
+
+        /**
+         * @param resolution
+         *            the update interval of the clock in milliseconds
+         */
+        public CoarseClock(final long resolution) {
+            now = MONOTONIC_CLOCK.millis();
+            Thread ticker = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    while (running) {
+                        try {
+                            Thread.sleep(resolution);
+                        }
+                        catch (InterruptedException ex) {
+                            return;
+                        }
+                        now = MONOTONIC_CLOCK.millis();
+                    }
+                }
+            }, "Performance-CoarseClock");
+            ticker.setDaemon(true);
+            ticker.start();
+        }
+
+        @Override
+        public long millis() {
+            return now;
+        }
+
+        public void stop() {
+            running = false;
+        }
+    }
+
+    /**
+     * A clock which only moves when it is told to, for testing.
+     */
+    public static class ManualClock implements Clock {
+        private volatile long now;
+
+        public ManualClock(long now) {
+            this.now = now;
+        }
+
+        @Override
+        public long millis() {
+            return now;
+        }
+
+        public ManualClock set(long now) {
+            this.now = now;
+            return this;
+        }
 
-    private NumberFormat numfmt;
+        public ManualClock advance(long millis) {
+            this.now += millis;
+            return this;
+        }
+    }
 
-    private LinkedList<long[]> data = new LinkedList<long[]>();
+    // the sample window is a ring buffer of (time, count), the oldest sample is at windowHead
+    private long[] windowTime;
+    private long[] windowCount;
+    private int windowHead;
+    private int windowSize;
+    private Estimator estimator = Estimator.WINDOW;
+    // the exponentially weighted moving average rates per second, over 1, 5, 15 sampling intervals
+    private double rate1;
+    private double rate5;
+    private double rate15;
+    private long lastRateTime;
+    private long lastRateCount;
+    private final Clock clock;
+    private volatile Histogram latency;
+    private volatile TimeSeries timeSeries;
+    // multi-stage, the child stages roll up to the parent
+    private Performance parent;
+    private String name;
+    private double weight;
+    private final List<Performance> children = new CopyOnWriteArrayList<Performance>();
+    // per-thread handles, merged by poll()
+    private final List<Local> locals = new CopyOnWriteArrayList<Local>();
+    private final ThreadLocal<Local> localHandle = new ThreadLocal<Local>();
+    private long localMerged;
+    private volatile Throttle throttle;
+    // published at every sample, so it can be read without lock
+    private volatile Snapshot latestSnapshot;
+    // save the state periodically in a background thread
+    private ScheduledExecutorService autoSaver;
+    private volatile IOException autoSaveError;
     private long total;
     private int samplingInterval;
     private long nextSamplingTime;
@@ -40,6 +232,9 @@ public class Performance {
     private int sampleSize;
 
     private long start;
+    // for stall detection, read by the reporter thread
+    private volatile long lastProgressTime;
+    private long lastProgressCount;
     private int totalSamples;
     private long latestSample;
     private long current;
@@ -67,18 +262,22 @@ public class Performance {
     }
 
     public Performance(long total, String unit, int samplingInterval, int sampleSize) {
+        this(total, unit, samplingInterval, sampleSize, MONOTONIC_CLOCK);
+    }
+
+    public Performance(long total, String unit, int samplingInterval, int sampleSize, Clock clock) {
+        this.clock = clock;
         this.total = total;
         this.samplingInterval = samplingInterval;
         this.unit = unit;
         this.sampleSize = sampleSize;
-        start = System.currentTimeMillis();
+        windowTime = new long[Math.max(sampleSize, 1)];
+        windowCount = new long[windowTime.length];
+        start = clock.millis();
         nextSamplingTime = start + samplingInterval;
-
-        numfmt = NumberFormat.getNumberInstance(Locale.US);
-        numfmt.setMinimumIntegerDigits(0);
-        numfmt.setMinimumFractionDigits(2);
-        numfmt.setMaximumFractionDigits(2);
-        numfmt.setGroupingUsed(false);
+        lastRateTime = start;
+        lastProgressTime = start;
+        latestSnapshot = createSnapshot(null, start);
     }
 
     public boolean inc() {
@@ -91,6 +290,35 @@ public class Performance {
     }
 
     public boolean inc(long inc, boolean forceAdd) {
+        acquire(inc);
+        return addCount(inc, forceAdd);
+    }
+
+    public boolean incSynchronized() {
+        return incSynchronized(1, false);
+    }
+
+    public boolean incSynchronized(long inc, boolean forceAdd) {
+        // wait for the throttle before taking the lock, so the other threads are not blocked
+        acquire(inc);
+        synchronized (this) {
+            return addCount(inc, forceAdd);
+        }
+    }
+
+    public Performance incAlwaysSynchronized() {
+        incSynchronized(1, true);
+        return this;
+    }
+
+    private void acquire(long inc) {
+        Throttle t = throttle;
+        if (t != null) {
+            t.acquire(inc);
+        }
+    }
+
+    private boolean addCount(long inc, boolean forceAdd) {
         // check overflow
         if (total - latestSample < inc) {
             latestSample = total;
@@ -101,16 +329,9 @@ public class Performance {
         return addSample(latestSample, forceAdd);
     }
 
-    public synchronized boolean incSynchronized() {
-        return inc();
-    }
-
-    public synchronized boolean incSynchronized(long inc, boolean forceAdd) {
-        return inc(inc, forceAdd);
-    }
-
-    public synchronized Performance incAlwaysSynchronized() {
-        return incAlways();
+    // thread-safe inc() without the throttle, for merging the counts already done, e.g. the Local handles
+    synchronized boolean incUnthrottled(long inc, boolean forceAdd) {
+        return addCount(inc, forceAdd);
     }
 
     public boolean addSample(long count) {
@@ -131,7 +352,7 @@ public class Performance {
     }
 
     public boolean addSample(long count, boolean forceAdd) {
-        long now = System.currentTimeMillis();
+        long now = clock.millis();
 
         latestSample = count;
 
@@ -143,18 +364,566 @@ public class Performance {
 
         ++totalSamples;
 
-        long[] item = { now, count };
-        data.add(item);
-        while (data.size() > sampleSize) {
-            data.removeFirst();
+        if (count != lastProgressCount) {
+            lastProgressCount = count;
+            lastProgressTime = now;
+        }
+
+        if (windowTime != null) {
+            int tail = (windowHead + windowSize) % windowTime.length;
+            windowTime[tail] = now;
+            windowCount[tail] = count;
+            if (windowSize < windowTime.length) {
+                ++windowSize;
+            }
+            else {
+                // full, overwrite the oldest
+                windowHead = (windowHead + 1) % windowTime.length;
+            }
+        }
+
+        updateRates(now, count);
+        calcResult(now, count);
+        latestSnapshot = createSnapshot(name, now);
+
+        TimeSeries ts = timeSeries;
+        if (ts != null) {
+            ts.add(now, count);
+        }
+
+        if (JFR_AVAILABLE) {
+            Jfr.sample(this);
+        }
+
+        if (parent != null) {
+            parent.rollup();
+        }
+
+        return true;
+    }
+
+    /**
+     * Add a child meter as a stage of this meter, e.g. extract, transform and load of a job. This meter should not be
+     * updated directly; its progress is the weighted progress of the children in the unit of its total, e.g.
+     * <code>new Performance(100, "%")</code>, and the overall ETA is estimated from that. The child can be updated by
+     * its own thread.
+     * 
+     * @param name
+     *            the name of the stage
+     * @param child
+     *            the child meter
+     * @param weight
+     *            the weight of the stage in the overall progress, e.g. the relative time it takes
+     * @return the child meter
+     */
+    public synchronized <T extends Performance> T addChild(String name, T child, double weight) {
+        Performance c = child;
+        if (c.parent != null) {
+            throw new IllegalArgumentException("the child already has a parent");
+        }
+        // the roll-up of a cycle never ends
+        for (Performance p = this; p != null; p = p.parent) {
+            if (p == c) {
+                throw new IllegalArgumentException("the child is this meter or its ancestor");
+            }
+        }
+        c.parent = this;
+        c.name = name;
+        c.weight = weight;
+        children.add(c);
+        return child;
+    }
+
+    /**
+     * Add a child meter with weight 1.
+     * 
+     * @see #addChild(String, Performance, double)
+     */
+    public <T extends Performance> T addChild(String name, T child) {
+        return addChild(name, child, 1);
+    }
+
+    // forced, the parent reflects every accepted sample of the children, the children are already rate limited by
+    // their own sampling interval
+    private synchronized void rollup() {
+        double progress = 0;
+        double weights = 0;
+        for (Performance c : children) {
+            progress += c.weight * Math.min(1, Math.max(0, c.current * 1.0 / c.total));
+            weights += c.weight;
+        }
+        if (weights > 0) {
+            addSample(Math.round(progress / weights * total), true);
+        }
+    }
+
+    /**
+     * @return the child meters (stages)
+     */
+    public List<Performance> getChildren() {
+        return new ArrayList<Performance>(children);
+    }
+
+    /**
+     * Get the unfinished stage that will finish last at its recent rate, i.e. the stage to add resources to.
+     * 
+     * @return the child meter, or <code>null</code> if no unfinished stage
+     */
+    public Performance getBottleneck() {
+        Performance bottleneck = null;
+        for (Performance c : children) {
+            if (c.totalSamples > 0 && c.current < c.total && (bottleneck == null || c.remaining > bottleneck.remaining)) {
+                bottleneck = c;
+            }
+        }
+        return bottleneck;
+    }
+
+    /**
+     * @return the name of the stage if this is a child meter, or the name first registered in a {@link Registry},
+     *         otherwise <code>null</code>
+     */
+    public String getName() {
+        return name;
+    }
+
+    public Performance getParent() {
+        return parent;
+    }
+
+    /**
+     * Cap the throughput of <code>inc()</code> at the target rate. <code>inc()</code> parks the calling thread just long
+     * enough to keep the rate, so the same meter bounds the load and reports the progress and ETA. It is shared by all
+     * threads calling <code>inc()</code> on this meter.
+     * <p>
+     * It is a token bucket which allows a burst of 10ms worth of permits, so it stays smooth at high rates where a
+     * single park is longer than the interval between two <code>inc()</code>. <code>addSample()</code> and
+     * {@link Local} handles are not throttled.
+     * </p>
+     * 
+     * @param targetPerSecond
+     *            the maximum number per second, 0 or negative to remove the throttle
+     * @return this
+     */
+    public Performance throttle(double targetPerSecond) {
+        throttle = targetPerSecond > 0 ? new Throttle(targetPerSecond) : null;
+        return this;
+    }
+
+    /**
+     * @return the target rate per second of the throttle, or 0 if not throttled
+     */
+    public double getThrottle() {
+        Throttle t = throttle;
+        return t != null ? t.rate : 0;
+    }
+
+    private static final class Throttle {
+        private static final long BURST_NANOS = 10000000;
+
+        private final double rate;
+        private final double nanosPerPermit;
+        private final long burstNanos;
+        // the time the next permit is available, it is in the past if there are stored permits
+        private long nextFree;
+        // the fraction of nanosecond not yet added to nextFree, or a high rate would run over by the truncation
+        private double nextFreeFraction;
+
+        private Throttle(double rate) {
+            this.rate = rate;
+            nanosPerPermit = 1000000000.0 / rate;
+            burstNanos = Math.max(BURST_NANOS, (long) nanosPerPermit);
+            nextFree = System.nanoTime();
+        }
+
+        private void acquire(long permits) {
+            if (permits <= 0) {
+                return;
+            }
+
+            long wait;
+            synchronized (this) {
+                long now = System.nanoTime();
+                // idle for a while, store at most one burst of permits
+                if (now - nextFree > burstNanos) {
+                    nextFree = now - burstNanos;
+                    nextFreeFraction = 0;
+                }
+                double cost = permits * nanosPerPermit + nextFreeFraction;
+                long nanos = (long) cost;
+                nextFreeFraction = cost - nanos;
+                nextFree += nanos;
+                wait = nextFree - now;
+            }
+
+            // park outside the lock so the other threads can reserve their permits
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+        }
+    }
+
+    /**
+     * Get the handle of current thread for counting in tight loop. The handle is confined to current thread and its
+     * <code>inc()</code> is a plain increment without lock or CAS. The counts of all handles are merged into this
+     * meter by {@link #poll()}, which is called by the <code>Registry</code> reporter or by any thread periodically.
+     * <p>
+     * Get the handle once outside the loop, as <code>local()</code> itself looks up a <code>ThreadLocal</code>.
+     * </p>
+     * 
+     * @return the handle of current thread
+     */
+    public Local local() {
+        Local local = localHandle.get();
+        if (local == null) {
+            local = new Local();
+            localHandle.set(local);
+            locals.add(local);
+        }
+        return local;
+    }
+
+    /**
+     * Merge the counts of the {@link #local()} handles into this meter and add a sample if the sampling time is
+     * reached.
+     * 
+     * @return <code>true</code> if a sample is added
+     */
+    public boolean poll() {
+        return poll(false);
+    }
+
+    /**
+     * Merge the counts of the {@link #local()} handles into this meter.
+     * 
+     * @param forceAdd
+     *            add a sample even the sampling time is not reached
+     * @return <code>true</code> if a sample is added
+     */
+    public boolean poll(boolean forceAdd) {
+        long delta;
+        synchronized (locals) {
+            long sum = 0;
+            for (Local local : locals) {
+                sum += local.count;
+            }
+            delta = sum - localMerged;
+            localMerged = sum;
+        }
+        return incUnthrottled(delta, forceAdd);
+    }
+
+    /**
+     * The per-thread handle of a meter, see {@link Performance#local()}.
+     * <p>
+     * Only the owner thread updates the count. It is published with <code>lazySet()</code>, which is a plain store on
+     * most CPU, so the other threads see it eventually without any fence in the loop.
+     * </p>
+     */
+    public static final class Local {
+        private static final AtomicLongFieldUpdater<Local> COUNT = AtomicLongFieldUpdater.newUpdater(Local.class,
+                "count");
+
+        private volatile long count;
+
+        private Local() {
+        }
+
+        public void inc() {
+            COUNT.lazySet(this, count + 1);
+        }
+
+        public void inc(long inc) {
+            COUNT.lazySet(this, count + inc);
+        }
+
+        /**
+         * @return the count of this handle only
+         */
+        public long getCount() {
+            return count;
+        }
+    }
+
+    private static final int STATE_MAGIC = 0x50455246; // PERF
+    private static final int STATE_VERSION = 1;
+
+    /**
+     * Save the state of the meter, i.e. the count, the elapsed time, the sample window and the rates, in a compact
+     * binary format. The times are saved relative to now, so the time between {@link #save(OutputStream)} and
+     * {@link #restore(InputStream)}, e.g. the downtime of a restarted job, is excluded from the elapsed time and the
+     * rates.
+     * <p>
+     * The settings (total, unit, sampling interval, estimator, etc.), the children and the latency histogram are not
+     * saved.
+     * </p>
+     * 
+     * @param out
+     *            the output stream, it is not closed
+     * @throws IOException
+     *             if fails to write
+     */
+    public synchronized void save(OutputStream out) throws IOException {
+        long now = clock.millis();
+        DataOutputStream dout = new DataOutputStream(out);
+        dout.writeInt(STATE_MAGIC);
+        dout.writeInt(STATE_VERSION);
+        dout.writeLong(total);
+        dout.writeLong(latestSample);
+        dout.writeInt(totalSamples);
+        dout.writeLong(now - start);
+        dout.writeDouble(rate1);
+        dout.writeDouble(rate5);
+        dout.writeDouble(rate15);
+        dout.writeLong(now - lastRateTime);
+        dout.writeLong(lastRateCount);
+        int size = windowTime != null ? windowSize : 0;
+        dout.writeInt(size);
+        for (int i = 0; i < size; i++) {
+            int index = (windowHead + i) % windowTime.length;
+            dout.writeLong(now - windowTime[index]);
+            dout.writeLong(windowCount[index]);
+        }
+        dout.flush();
+    }
+
+    /**
+     * Save the state to the file. It writes to a temp file and then renames it, so the file is never half written if
+     * the job is killed while saving.
+     * 
+     * @param file
+     *            the file
+     * @throws IOException
+     *             if fails to write
+     * @see #save(OutputStream)
+     */
+    public void save(File file) throws IOException {
+        // only hold the lock while taking the state, not while writing the file
+        ByteArrayOutputStream state = new ByteArrayOutputStream(256);
+        save(state);
+
+        File tmp = new File(file.getPath() + ".tmp");
+        OutputStream out = new FileOutputStream(tmp);
+        try {
+            state.writeTo(out);
+        }
+        finally {
+            out.close();
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Restore the state saved by {@link #save(OutputStream)}, so the ETA is meaningful right after the job is resumed
+     * instead of after a full sample window. The meter should be created with the same settings.
+     * 
+     * @param in
+     *            the input stream, it is not closed
+     * @return this
+     * @throws IOException
+     *             if fails to read or it is not a saved state
+     */
+    public synchronized Performance restore(InputStream in) throws IOException {
+        DataInputStream din = new DataInputStream(in);
+        if (din.readInt() != STATE_MAGIC) {
+            throw new IOException("not a saved Performance state");
+        }
+        int version = din.readInt();
+        if (version != STATE_VERSION) {
+            throw new IOException("unsupported version " + version);
+        }
+
+        long now = clock.millis();
+        din.readLong(); // total, the current setting wins
+        latestSample = din.readLong();
+        totalSamples = din.readInt();
+        start = now - din.readLong();
+        rate1 = din.readDouble();
+        rate5 = din.readDouble();
+        rate15 = din.readDouble();
+        lastRateTime = now - din.readLong();
+        lastRateCount = din.readLong();
+        int size = din.readInt();
+        windowHead = 0;
+        windowSize = 0;
+        for (int i = 0; i < size; i++) {
+            long time = now - din.readLong();
+            long count = din.readLong();
+            // the sample size may be changed, keep the latest samples
+            if (windowTime != null && i >= size - windowTime.length) {
+                windowTime[windowSize] = time;
+                windowCount[windowSize] = count;
+                ++windowSize;
+            }
         }
 
-        calcResult(now);
+        nextSamplingTime = now + samplingInterval;
+        lastProgressCount = latestSample;
+        lastProgressTime = now;
+        calcResult(now, latestSample);
+        latestSnapshot = createSnapshot(name, now);
+        return this;
+    }
+
+    /**
+     * Restore the state from the file if it exists.
+     * 
+     * @param file
+     *            the file
+     * @return <code>true</code> if the state is restored, <code>false</code> if the file does not exist
+     * @throws IOException
+     *             if fails to read or it is not a saved state
+     * @see #restore(InputStream)
+     */
+    public boolean restore(File file) throws IOException {
+        if (!file.exists()) {
+            return false;
+        }
 
+        InputStream in = new BufferedInputStream(new FileInputStream(file));
+        try {
+            restore(in);
+        }
+        finally {
+            in.close();
+        }
         return true;
     }
 
+    /**
+     * Save the state to the file periodically in a background daemon thread, so the threads calling
+     * <code>inc()</code> never wait for the disk. The failure is kept in {@link #getAutoSaveError()} and the next
+     * save is still tried.
+     * 
+     * @param file
+     *            the file, <code>null</code> to stop
+     * @param interval
+     *            the interval between two saves in milliseconds
+     * @return this
+     * @see #save(File)
+     */
+    public synchronized Performance autoSave(final File file, long interval) {
+        if (autoSaver != null) {
+            autoSaver.shutdown();
+            autoSaver = null;
+        }
+        autoSaveError = null;
+        if (file == null) {
+            return this;
+        }
+
+        autoSaver = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "Performance-AutoSave");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        autoSaver.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    save(file);
+                    autoSaveError = null;
+                }
+                catch (IOException ex) {
+                    autoSaveError = ex;
+                }
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+        return this;
+    }
+
+    /**
+     * Get the failure of the last auto save.
+     * 
+     * @return the exception, or <code>null</code> if the last save is successful or not yet run
+     * @see #autoSave(File, long)
+     */
+    public IOException getAutoSaveError() {
+        return autoSaveError;
+    }
+
+    /**
+     * Record the latency of an operation into the latency histogram. Thread-safe.
+     * 
+     * @param nanos
+     *            the latency in nanoseconds
+     */
+    public void recordLatency(long nanos) {
+        Histogram h = latency;
+        if (h == null) {
+            synchronized (this) {
+                h = latency;
+                if (h == null) {
+                    h = latency = new Histogram();
+                }
+            }
+        }
+        h.record(nanos);
+    }
+
+    /**
+     * Get the latency histogram.
+     * 
+     * @return the histogram, or <code>null</code> if no latency has been recorded
+     */
+    public Histogram getLatencyHistogram() {
+        return latency;
+    }
+
+    /**
+     * Set the histogram used by {@link #recordLatency(long)}, e.g. to use different precision.
+     * 
+     * @param histogram
+     *            the histogram
+     * @return this
+     */
+    public Performance setLatencyHistogram(Histogram histogram) {
+        this.latency = histogram;
+        return this;
+    }
+
+    /**
+     * Keep the throughput of this meter in a time series at every sample, e.g. <code>new TimeSeries()</code> to keep
+     * per-second for the last hour and per-minute for the last day.
+     * 
+     * @param ts
+     *            the time series, <code>null</code> to stop
+     * @return this
+     */
+    public synchronized Performance setTimeSeries(TimeSeries ts) {
+        if (ts != null) {
+            ts.reset(clock.millis(), latestSample);
+        }
+        timeSeries = ts;
+        return this;
+    }
+
+    public TimeSeries getTimeSeries() {
+        return timeSeries;
+    }
+
     public String millisToStr(long m) {
+        return formatMillis(m);
+    }
+
+    private static String formatMillis(long m) {
+        return appendMillis(new StringBuilder(16), m).toString();
+    }
+
+    /**
+     * Append the duration to the <code>StringBuilder</code> in the format of {@link #millisToStr(long)}, without
+     * creating any object.
+     * 
+     * @param sb
+     *            the <code>StringBuilder</code>
+     * @param m
+     *            the duration in milliseconds
+     * @return the <code>StringBuilder</code>
+     */
+    public static StringBuilder appendMillis(StringBuilder sb, long m) {
         m = Math.max(0, m);
 
         long sec = (m / 1000) % 60;
@@ -166,35 +935,156 @@ public class Performance {
             if (hour % 24 > 0) {
                 ++day;
             }
-            return day + " day" + (day > 1 ? "s" : "");
+            sb.append(day).append(" day");
+            if (day > 1) {
+                sb.append('s');
+            }
         }
         else {
-            String hourStr = ((day > 0 || hour > 0) ? hour + ":" : "");
-            String minStr = ((min < 10 && hour > 0 ? "0" : "") + min);
-            String secStr = ":" + (sec < 10 ? "0" : "") + sec;
+            if (day > 0 || hour > 0) {
+                sb.append(hour).append(':');
+            }
+            if (min < 10 && hour > 0) {
+                sb.append('0');
+            }
+            sb.append(min).append(':');
+            if (sec < 10) {
+                sb.append('0');
+            }
+            sb.append(sec);
+        }
+
+        return sb;
+    }
+
+    // Append the value with 2 decimal places. If trimZero, the trailing zero is removed (e.g. 12.50 -> 12.5, 12.00 ->
+    // 12.0). If omitZeroInteger, 0.05 is .05
+    private static StringBuilder appendDecimal(StringBuilder sb, double value, boolean trimZero,
+            boolean omitZeroInteger) {
+        if (Double.isNaN(value) || Double.isInfinite(value) || Math.abs(value) >= 1e16) {
+            return sb.append(value);
+        }
+
+        long scaled = Math.round(Math.abs(value) * 100);
+        if (value < 0 && scaled != 0) {
+            sb.append('-');
+        }
+        long integer = scaled / 100;
+        int fraction = (int) (scaled % 100);
+        if (integer != 0 || !omitZeroInteger) {
+            sb.append(integer);
+        }
+        sb.append('.').append((char) ('0' + fraction / 10));
+        if (!trimZero || fraction % 10 != 0) {
+            sb.append((char) ('0' + fraction % 10));
+        }
+        return sb;
+    }
+
+    // 1234567890 -> 1.23B, rounded half up in integer like String.format("%.2fB"), value / 1e9 is not exact in double
+    private static StringBuilder appendBillion(StringBuilder sb, long value) {
+        long hundredths = value / 10000000 + (value % 10000000 >= 5000000 ? 1 : 0);
+        int fraction = (int) (hundredths % 100);
+        return sb.append(hundredths / 100).append('.').append((char) ('0' + fraction / 10))
+                .append((char) ('0' + fraction % 10)).append('B');
+    }
+
+    private void updateRates(long now, long count) {
+        long dt = now - lastRateTime;
+        if (dt <= 0) {
+            return;
+        }
 
-            return hourStr + minStr + secStr;
+        double rate = (count - lastRateCount) * 1000.0 / dt;
+        if (lastRateTime == start) {
+            rate1 = rate5 = rate15 = rate;
+        }
+        else {
+            // alpha depends on the actual time between samples, so the forced samples are weighted correctly
+            double interval = Math.max(samplingInterval, 1);
+            rate1 += (1 - Math.exp(-dt / interval)) * (rate - rate1);
+            rate5 += (1 - Math.exp(-dt / (5 * interval))) * (rate - rate5);
+            rate15 += (1 - Math.exp(-dt / (15 * interval))) * (rate - rate15);
         }
+        lastRateTime = now;
+        lastRateCount = count;
     }
 
-    private void calcResult(long now) {
-        if (data.size() == 0) {
+    // count is the count of the latest sample, the rates may not include it if it is in the same millisecond
+    private void calcResult(long now, long count) {
+        if (estimator != Estimator.WINDOW) {
+            if (totalSamples == 0) {
+                return;
+            }
+
+            double rate = estimator == Estimator.EWMA_1 ? rate1 : (estimator == Estimator.EWMA_5 ? rate5 : rate15);
+            current = count;
+            ellapsed = now - start;
+            progressPercentage = Math.round(current * 10000.00 / total) / 100.0;
+            remaining = Math.round((total - current) * 1000.0 / rate);
+            estimated = ellapsed + remaining;
+            recentAvg = rate;
+            overallAvg = current * 1.0 / ellapsed * 1000;
+            return;
+        }
+
+        if (windowSize == 0) {
             return;
         }
 
-        long[] first = data.getFirst();
-        long[] last = data.getLast();
+        int first = windowHead;
+        int last = (windowHead + windowSize - 1) % windowTime.length;
 
-        current = last[1];
+        current = windowCount[last];
         ellapsed = now - start;
 
         progressPercentage = Math.round(current * 10000.00 / total) / 100.0;
-        long sampleMillis = last[0] - (data.size() > 1 ? first[0] : start);
-        long sampleCount = last[1] - (data.size() > 1 ? first[1] : 0);
-        remaining = Math.round((total - last[1]) * 1.0 / sampleCount * sampleMillis);
+        long sampleMillis = windowTime[last] - (windowSize > 1 ? windowTime[first] : start);
+        long sampleCount = windowCount[last] - (windowSize > 1 ? windowCount[first] : 0);
+        remaining = Math.round((total - windowCount[last]) * 1.0 / sampleCount * sampleMillis);
         estimated = ellapsed + remaining;
         recentAvg = sampleCount * 1.0 / sampleMillis * 1000;
-        overallAvg = last[1] * 1.0 / ellapsed * 1000;
+        overallAvg = windowCount[last] * 1.0 / ellapsed * 1000;
+    }
+
+    /**
+     * Set how the recent average and remaining time are estimated. The sample window is released if it is not
+     * {@link Estimator#WINDOW}, so the memory of the meter does not depend on the sample size.
+     * 
+     * @param estimator
+     *            the estimator
+     * @return this
+     */
+    public synchronized Performance setEstimator(Estimator estimator) {
+        this.estimator = estimator;
+        if (estimator == Estimator.WINDOW) {
+            if (windowTime == null) {
+                windowTime = new long[Math.max(sampleSize, 1)];
+                windowCount = new long[windowTime.length];
+            }
+        }
+        else {
+            windowTime = null;
+            windowCount = null;
+            windowHead = 0;
+            windowSize = 0;
+        }
+        return this;
+    }
+
+    public Estimator getEstimator() {
+        return estimator;
+    }
+
+    public Clock getClock() {
+        return clock;
+    }
+
+    /**
+     * @return the time of the latest sample with a different count, or the start time if no progress yet
+     */
+    public long getLastProgressTime() {
+        return lastProgressTime;
     }
 
     public long getTotal() {
@@ -245,30 +1135,68 @@ public class Performance {
         return overallAvg;
     }
 
+    /** The exponentially weighted moving average rate per second over 1 sampling interval */
+    public double getRate1() {
+        return rate1;
+    }
+
+    /** The exponentially weighted moving average rate per second over 5 sampling intervals */
+    public double getRate5() {
+        return rate5;
+    }
+
+    /** The exponentially weighted moving average rate per second over 15 sampling intervals */
+    public double getRate15() {
+        return rate15;
+    }
+
     public String getResultDesc() {
         return getResultDesc(null);
     }
 
     public String getResultDesc(String prefix) {
-        return getResultDesc(prefix, unit);
+        return appendResultDesc(new StringBuilder(96), prefix).toString();
     }
 
-    private String getResultDesc(String prefix, String unit) {
-        // String currentStr = current < 1000000000000l ? numfmt.format(current) : (current + "");
-        String currentStr = current + "";
-        // String totalStr = total < 1000000000000l ? numfmt.format(total) : (total + "");
-        String totalStr = total > 1000000000 ? String.format("%.2fB", total / 1000000000.0) : ("" + total);
+    /**
+     * Append the result of {@link #getResultDesc(String)} to the <code>StringBuilder</code>. Unlike
+     * <code>getResultDesc()</code>, it does not create any object so it is suitable to report many meters frequently
+     * with a reused <code>StringBuilder</code>.
+     * 
+     * @param sb
+     *            the <code>StringBuilder</code>
+     * @param prefix
+     *            the prefix, can be <code>null</code>
+     * @return the <code>StringBuilder</code>
+     */
+    public StringBuilder appendResultDesc(StringBuilder sb, String prefix) {
+        return appendDesc(sb, prefix, unit, current, total, progressPercentage, ellapsed, estimated, remaining);
+    }
 
-        StringBuilder sb = new StringBuilder();
-        sb.append(prefix != null ? (prefix + " ") : "").append(currentStr).append("/").append(totalStr)
-                .append(unit != null ? (" " + unit) : "").append(" (").append(progressPercentage)
-                .append("%), ellapsed: ").append(millisToStr(ellapsed));
+    private static StringBuilder appendDesc(StringBuilder sb, String prefix, String unit, long current, long total,
+            double progressPercentage, long ellapsed, long estimated, long remaining) {
+        if (prefix != null) {
+            sb.append(prefix).append(' ');
+        }
+        sb.append(current).append('/');
+        if (total > 1000000000) {
+            appendBillion(sb, total);
+        }
+        else {
+            sb.append(total);
+        }
+        if (unit != null) {
+            sb.append(' ').append(unit);
+        }
+        sb.append(" (");
+        appendDecimal(sb, progressPercentage, true, false).append("%), ellapsed: ");
+        appendMillis(sb, ellapsed);
         if (current < total) {
-            sb.append(", estimated: ").append(millisToStr(estimated)).append(", remaining: ")
-                    .append(millisToStr(remaining));
+            appendMillis(sb.append(", estimated: "), estimated);
+            appendMillis(sb.append(", remaining: "), remaining);
         }
 
-        return sb.toString();
+        return sb;
     }
 
     public String getResultDescWithAvg() {
@@ -276,56 +1204,1946 @@ public class Performance {
     }
 
     public String getResultDescWithAvg(String prefix) {
-        return getResultDescWithAvg(prefix, unit);
+        return appendResultDescWithAvg(new StringBuilder(128), prefix).toString();
     }
 
-    private String getResultDescWithAvg(String prefix, String unit) {
-        double avg = (Math.round((current < total ? recentAvg : overallAvg) * 100.0) / 100.0);
-        String avgStr = avg > 1000000000 ? String.format("%.2fB", avg / 1000000000.0) : numfmt.format(avg);
-        return getResultDesc(prefix, unit) + ", avg:" + avgStr + (unit != null ? (" " + unit) : "") + "/s";
+    /**
+     * Append the result of {@link #getResultDescWithAvg(String)} to the <code>StringBuilder</code> without creating any
+     * object.
+     * 
+     * @param sb
+     *            the <code>StringBuilder</code>
+     * @param prefix
+     *            the prefix, can be <code>null</code>
+     * @return the <code>StringBuilder</code>
+     * @see #appendResultDesc(StringBuilder, String)
+     */
+    public StringBuilder appendResultDescWithAvg(StringBuilder sb, String prefix) {
+        appendResultDesc(sb, prefix);
+        return appendAvg(sb, unit, current < total ? recentAvg : overallAvg);
     }
 
-    private static void coverage() {
-        Performance p = new Performance(10);
-        p.calcResult(0); // wont die
-//        p.addSampleSynchronized(1, true);
-//        p.addSampleAlwaysSynchronized(2);
-//        p.incSynchronized();
-//        p.incAlwaysSynchronized();
-//        if (p.latestSample != 4) {
-//            System.out.println("\nFAIL in coverage()\n");
-//        }
-        p.getTotal();
-        p.getUnit();
-        p.getSampleSize();
-        p.getStart();
-        p.getTotalSamples();
-        p.getCurrent();
-        p.getProgressPercentage();
-        p.getEllapsed();
-        p.getEstimated();
-        p.getRemaining();
-        p.getRecentAvg();
-        p.getOverallAvg();
-        p.getResultDesc();
-        p.getResultDesc("");
+    private static StringBuilder appendAvg(StringBuilder sb, String unit, double rate) {
+        sb.append(", avg:");
+        appendRate(sb, unit, rate);
+        return sb;
     }
 
-    public static void main(String[] args) {
+    // 1234.5678 -> 1234.57 unit/s
+    private static StringBuilder appendRate(StringBuilder sb, String unit, double rate) {
+        double avg = (Math.round(rate * 100.0) / 100.0);
+        if (avg > 1000000000) {
+            // the half-way points of 0.01B are whole numbers, truncating the fraction keeps the rounding
+            appendBillion(sb, (long) avg);
+        }
+        else {
+            appendDecimal(sb, avg, false, true);
+        }
+        if (unit != null) {
+            sb.append(' ').append(unit);
+        }
+        return sb.append("/s");
+    }
+
+    /**
+     * Take a snapshot of the result, so it can be reported by another thread.
+     * 
+     * @param name
+     *            the name of the meter, can be <code>null</code>
+     * @return the snapshot
+     */
+    public synchronized Snapshot snapshot(String name) {
+        return createSnapshot(name, clock.millis());
+    }
+
+    /**
+     * Get the snapshot published at the latest sample. Unlike {@link #snapshot(String)}, it does not lock the meter
+     * so the reader, e.g. a console board refreshing many meters, never blocks the threads updating the meter.
+     * 
+     * @return the snapshot, the name is the name of the meter
+     */
+    public Snapshot getLatestSnapshot() {
+        return latestSnapshot;
+    }
+
+    private Snapshot createSnapshot(String name, long time) {
+        Snapshot ss = new Snapshot();
+        ss.name = name;
+        ss.unit = unit;
+        ss.time = time;
+        ss.total = total;
+        ss.current = current;
+        ss.totalSamples = totalSamples;
+        ss.progressPercentage = progressPercentage;
+        ss.ellapsed = ellapsed;
+        ss.estimated = estimated;
+        ss.remaining = remaining;
+        ss.recentAvg = recentAvg;
+        ss.overallAvg = overallAvg;
+        ss.rate1 = rate1;
+        ss.rate5 = rate5;
+        ss.rate15 = rate15;
+        return ss;
+    }
+
+    /**
+     * The immutable result of a <code>Performance</code> at a moment.
+     */
+    public static class Snapshot implements Cloneable {
+        private String name;
+        private String unit;
+        private long time;
+        private long total;
+        private long current;
+        private int totalSamples;
+        private double progressPercentage;
+        private long ellapsed;
+        private long estimated;
+        private long remaining;
+        private double recentAvg;
+        private double overallAvg;
+        private double rate1;
+        private double rate5;
+        private double rate15;
+
+        private Snapshot() {
+        }
+
+        // the same result under another name
+        private Snapshot copy(String name) {
+            Snapshot ss;
+            try {
+                ss = (Snapshot) clone();
+            }
+            catch (CloneNotSupportedException ex) {
+                throw new IllegalStateException(ex);
+            }
+            ss.name = name;
+            return ss;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getUnit() {
+            return unit;
+        }
+
+        /** The clock time when the snapshot is taken */
+        public long getTime() {
+            return time;
+        }
+
+        public long getTotal() {
+            return total;
+        }
+
+        public long getCurrent() {
+            return current;
+        }
+
+        public int getTotalSamples() {
+            return totalSamples;
+        }
+
+        public double getProgressPercentage() {
+            return progressPercentage;
+        }
+
+        public long getEllapsed() {
+            return ellapsed;
+        }
+
+        public long getEstimated() {
+            return estimated;
+        }
+
+        public long getRemaining() {
+            return remaining;
+        }
+
+        public double getRecentAvg() {
+            return recentAvg;
+        }
+
+        public double getOverallAvg() {
+            return overallAvg;
+        }
+
+        public double getRate1() {
+            return rate1;
+        }
+
+        public double getRate5() {
+            return rate5;
+        }
+
+        public double getRate15() {
+            return rate15;
+        }
+
+        /**
+         * Same as {@link Performance#getResultDesc(String)} with the name as prefix.
+         */
+        public String getResultDesc() {
+            return appendResultDesc(new StringBuilder(96)).toString();
+        }
+
+        /**
+         * Same as {@link Performance#getResultDescWithAvg(String)} with the name as prefix.
+         */
+        public String getResultDescWithAvg() {
+            return appendResultDescWithAvg(new StringBuilder(128)).toString();
+        }
+
+        /**
+         * Same as {@link Performance#appendResultDesc(StringBuilder, String)} with the name as prefix.
+         */
+        public StringBuilder appendResultDesc(StringBuilder sb) {
+            return appendDesc(sb, name, unit, current, total, progressPercentage, ellapsed, estimated, remaining);
+        }
+
+        /**
+         * Same as {@link Performance#appendResultDescWithAvg(StringBuilder, String)} with the name as prefix.
+         */
+        public StringBuilder appendResultDescWithAvg(StringBuilder sb) {
+            appendResultDesc(sb);
+            return appendAvg(sb, unit, current < total ? recentAvg : overallAvg);
+        }
+    }
+
+    public enum Alert {
+        STALLED, SLOWDOWN, RECOVERED
+    }
+
+    /**
+     * The listener of {@link Registry#setAlert(long, double, AlertListener)}, e.g. to log the alert and
+     * {@link Performance#dumpThreads()}.
+     */
+    public interface AlertListener {
+        void alert(Alert alert, String name, Performance meter, String message);
+    }
+
+    /**
+     * Dump the stack traces of all threads with the locks they hold and wait for, e.g. to find a stuck query when a
+     * meter is stalled.
+     * 
+     * @return the thread dump
+     */
+    public static String dumpThreads() {
+        StringBuilder sb = new StringBuilder();
+        for (ThreadInfo ti : ManagementFactory.getThreadMXBean().dumpAllThreads(true, true)) {
+            sb.append('"').append(ti.getThreadName()).append("\" id=").append(ti.getThreadId()).append(' ')
+                    .append(ti.getThreadState());
+            if (ti.getLockName() != null) {
+                sb.append(" on ").append(ti.getLockName());
+            }
+            if (ti.getLockOwnerName() != null) {
+                sb.append(" owned by \"").append(ti.getLockOwnerName()).append('"');
+            }
+            sb.append('\n');
+            StackTraceElement[] stack = ti.getStackTrace();
+            MonitorInfo[] monitors = ti.getLockedMonitors();
+            for (int i = 0; i < stack.length; i++) {
+                sb.append("\tat ").append(stack[i]).append('\n');
+                for (MonitorInfo mi : monitors) {
+                    if (mi.getLockedStackDepth() == i) {
+                        sb.append("\t- locked ").append(mi).append('\n');
+                    }
+                }
+            }
+            for (LockInfo li : ti.getLockedSynchronizers()) {
+                sb.append("\t- locked ").append(li).append('\n');
+            }
+            sb.append('\n');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Receive the snapshots of all meters of a {@link Registry} periodically.
+     */
+    public interface Reporter {
+        void report(List<Snapshot> snapshots);
+    }
+
+    /**
+     * Print {@link Snapshot#getResultDescWithAvg()} of each meter to a <code>PrintWriter</code>.
+     */
+    public static class PrintWriterReporter implements Reporter {
+        private final PrintWriter out;
+        // reused by the reporter thread
+        private final StringBuilder sb = new StringBuilder(256);
+        private char[] buf = new char[256];
+
+        public PrintWriterReporter(PrintWriter out) {
+            this.out = out;
+        }
+
+        @Override
+        public void report(List<Snapshot> snapshots) {
+            for (Snapshot ss : snapshots) {
+                sb.setLength(0);
+                ss.appendResultDescWithAvg(sb);
+                if (buf.length < sb.length()) {
+                    buf = new char[sb.length() * 2];
+                }
+                sb.getChars(0, sb.length(), buf, 0);
+                out.write(buf, 0, sb.length());
+                out.println();
+            }
+            out.flush();
+        }
+    }
+
+    /**
+     * Log {@link Snapshot#getResultDescWithAvg()} of each meter at info level without compile time dependency on the
+     * logging framework. Any logger with <code>info(Object)</code> or <code>info(String)</code> method works, e.g.
+     * <code>SCLog</code>, log4j, commons-logging or <code>java.util.logging.Logger</code>.
+     */
+    public static class LoggerReporter implements Reporter {
+        private final Object logger;
+        private final Method infoMethod;
+
+        public LoggerReporter(Object logger) {
+            this.logger = logger;
+            Method m = null;
+            for (Method method : logger.getClass().getMethods()) {
+                if (method.getName().equals("info") && method.getParameterTypes().length == 1
+                        && method.getParameterTypes()[0].isAssignableFrom(String.class)) {
+                    m = method;
+                    break;
+                }
+            }
+            if (m == null) {
+                throw new IllegalArgumentException("no info(String) method in " + logger.getClass().getName());
+            }
+            this.infoMethod = m;
+        }
+
+        @Override
+        public void report(List<Snapshot> snapshots) {
+            for (Snapshot ss : snapshots) {
+                try {
+                    infoMethod.invoke(logger, ss.getResultDescWithAvg());
+                }
+                catch (Exception ex) {
+                    ex.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Hold the named meters and report them at a fixed interval from a single background thread, so the worker threads
+     * only update the meters and never do the formatting and I/O.
+     * 
+     * <pre>
+     * Registry registry = new Registry();
+     * final Performance p = registry.register("Extract", new Performance.Concurrent(total));
+     * registry.startReporter(1000, new PrintWriterReporter(new PrintWriter(System.out)));
+     * // in worker threads
+     * p.inc();
+     * // done
+     * registry.stopReporter();
+     * </pre>
+     * 
+     * To render the report as a table, use {@link #toTable(List)} with <code>TextTable</code> in the reporter, e.g.
+     * <code>new TextTable(Registry.toTable(snapshots)).render()</code>.
+     * <p>
+     * The meters updated from multiple threads should use {@link Concurrent} or the <code>xxxSynchronized()</code>
+     * methods, so the snapshot is consistent.
+     * </p>
+     */
+    public static class Registry {
+        private final Map<String, Performance> meters = new LinkedHashMap<String, Performance>();
+        private ScheduledExecutorService executor;
+        private Reporter reporter;
+        private Runnable jfrHook;
+        private AlertListener alertListener;
+        private long stallTimeout;
+        private double slowdownRatio;
+        // the current alert of each meter, to fire only on transition
+        private final Map<String, Alert> alerts = new HashMap<String, Alert>();
+
+        /**
+         * Register a meter, replace the meter of the same name.
+         * 
+         * @param name
+         *            the name of the meter
+         * @param p
+         *            the meter
+         * @return the meter
+         */
+        public <T extends Performance> T register(String name, T p) {
+            synchronized (meters) {
+                meters.put(name, p);
+                Performance meter = p;
+                if (meter.name == null) {
+                    // so the meter can be identified in the JFR sample events
+                    meter.name = name;
+                }
+            }
+            return p;
+        }
+
+        public Performance get(String name) {
+            synchronized (meters) {
+                return meters.get(name);
+            }
+        }
+
+        public Performance remove(String name) {
+            synchronized (meters) {
+                return meters.remove(name);
+            }
+        }
+
+        /**
+         * @return a copy of the registered meters in the order of registration
+         */
+        public Map<String, Performance> getMeters() {
+            synchronized (meters) {
+                return new LinkedHashMap<String, Performance>(meters);
+            }
+        }
+
+        /**
+         * Take the snapshots of all meters in the order of registration.
+         * 
+         * @return the snapshots
+         */
+        public List<Snapshot> snapshot() {
+            return snapshot(false);
+        }
+
+        /**
+         * Get the snapshots published at the latest sample of all meters, without locking the meters. The counts of
+         * the {@link Local} handles are included up to their last poll, e.g. by the reporter. For example, to show all
+         * meters in a live board with <code>TextTable</code>:
+         * 
+         * <pre>
+         * new TextTable.LiveBoard(new TextTable.LiveBoard.RowSource() {
+         *     public Object[][] rows() {
+         *         return Registry.toTable(registry.latestSnapshot(), 20);
+         *     }
+         * }).start();
+         * </pre>
+         * 
+         * @return the snapshots
+         * @see Performance#getLatestSnapshot()
+         */
+        public List<Snapshot> latestSnapshot() {
+            List<Snapshot> list = new ArrayList<Snapshot>();
+            for (Map.Entry<String, Performance> e : getMeters().entrySet()) {
+                Snapshot ss = e.getValue().getLatestSnapshot();
+                if (!e.getKey().equals(ss.name)) {
+                    ss = ss.copy(e.getKey());
+                }
+                list.add(ss);
+            }
+            return list;
+        }
+
+        // forcePoll to sample the local handles for the final report
+        private List<Snapshot> snapshot(boolean forcePoll) {
+            return snapshot(getMeters(), forcePoll);
+        }
+
+        // the snapshots of the copy of the meters, so they match the other data taken from the same copy
+        private static List<Snapshot> snapshot(Map<String, Performance> meters, boolean forcePoll) {
+            List<Snapshot> list = new ArrayList<Snapshot>();
+            for (Map.Entry<String, Performance> e : meters.entrySet()) {
+                Performance p = e.getValue();
+                if (!p.locals.isEmpty()) {
+                    p.poll(forcePoll);
+                }
+                list.add(p.snapshot(e.getKey()));
+            }
+            return list;
+        }
+
+        /**
+         * Report the snapshots of all meters in current thread.
+         * 
+         * @param reporter
+         *            the reporter
+         */
+        public void report(Reporter reporter) {
+            reporter.report(snapshot());
+        }
+
+        /**
+         * Emit a <code>org.ellab.performance.Snapshot</code> JDK Flight Recorder event of every meter periodically,
+         * every second by default (can be changed by the <code>period</code> setting of the event). The snapshots are
+         * only taken when a recording is running.
+         * 
+         * @return <code>true</code> if enabled, <code>false</code> if JFR is not available
+         */
+        public synchronized boolean enableJfr() {
+            if (!JFR_AVAILABLE) {
+                return false;
+            }
+            if (jfrHook == null) {
+                jfrHook = Jfr.addPeriodic(this);
+            }
+            return true;
+        }
+
+        public synchronized Registry disableJfr() {
+            if (jfrHook != null) {
+                Jfr.removePeriodic(jfrHook);
+                jfrHook = null;
+            }
+            return this;
+        }
+
+        /**
+         * Detect the stalled or slowed down meters. The meters are checked by the reporter thread (see
+         * {@link #startReporter(long, Reporter)}) or by {@link #checkAlerts()}, never by the threads updating the
+         * meters. The listener is called when a meter becomes stalled or slowed down, and when it recovers. The
+         * completed meters are not checked.
+         * <p>
+         * The slowdown is based on the recent average, which changes slowly with a large sample window; consider
+         * {@link Estimator#EWMA_1} or a smaller sample size for the meters.
+         * </p>
+         * 
+         * @param stallTimeout
+         *            alert if no progress for this time in milliseconds, 0 to disable
+         * @param slowdownRatio
+         *            alert if the recent average is lower than this ratio of the overall average, e.g. 0.5, 0 to
+         *            disable
+         * @param listener
+         *            the listener, <code>null</code> to stop
+         * @return this
+         */
+        public Registry setAlert(long stallTimeout, double slowdownRatio, AlertListener listener) {
+            synchronized (alerts) {
+                this.stallTimeout = stallTimeout;
+                this.slowdownRatio = slowdownRatio;
+                this.alertListener = listener;
+                alerts.clear();
+            }
+            return this;
+        }
+
+        /**
+         * Check all meters and call the alert listener for the changes.
+         * 
+         * @see #setAlert(long, double, AlertListener)
+         */
+        public void checkAlerts() {
+            synchronized (alerts) {
+                if (alertListener == null) {
+                    return;
+                }
+
+                for (Map.Entry<String, Performance> e : getMeters().entrySet()) {
+                    String name = e.getKey();
+                    Performance p = e.getValue();
+                    Snapshot ss = p.getLatestSnapshot();
+                    Alert alert = null;
+                    String message = null;
+                    if (ss.current < ss.total) {
+                        long idle = p.clock.millis() - p.getLastProgressTime();
+                        double avg = ss.recentAvg;
+                        if (stallTimeout > 0 && idle >= stallTimeout) {
+                            alert = Alert.STALLED;
+                            message = appendMillis(new StringBuilder("no progress for "), idle).toString();
+                        }
+                        else if (slowdownRatio > 0 && ss.totalSamples > 1 && avg < ss.overallAvg * slowdownRatio) {
+                            alert = Alert.SLOWDOWN;
+                            StringBuilder sb = new StringBuilder("recent avg ");
+                            appendRate(sb, ss.unit, avg).append(" is below ");
+                            appendDecimal(sb, slowdownRatio * 100, true, false).append("% of overall avg ");
+                            message = appendRate(sb, ss.unit, ss.overallAvg).toString();
+                        }
+                    }
+
+                    Alert prev = alerts.get(name);
+                    if (alert != null && alert != prev) {
+                        alerts.put(name, alert);
+                        alertListener.alert(alert, name, p, message);
+                    }
+                    else if (alert == null && prev != null) {
+                        alerts.remove(name);
+                        alertListener.alert(Alert.RECOVERED, name, p, "recovered from " + prev);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Start a background daemon thread to report all meters at fixed interval.
+         * 
+         * @param interval
+         *            the interval in milliseconds
+         * @param reporter
+         *            the reporter
+         * @return this
+         */
+        public synchronized Registry startReporter(long interval, final Reporter reporter) {
+            stopReporter(false);
+            this.reporter = reporter;
+            executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "Performance-Reporter");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            executor.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        report(reporter);
+                        checkAlerts();
+                    }
+                    catch (RuntimeException ex) {
+                        // don't let the exception stop the schedule
+                        ex.printStackTrace();
+                    }
+                }
+            }, interval, interval, TimeUnit.MILLISECONDS);
+            return this;
+        }
+
+        /**
+         * Stop the reporter thread and report the final result.
+         * 
+         * @return this
+         */
+        public Registry stopReporter() {
+            return stopReporter(true);
+        }
+
+        private synchronized Registry stopReporter(boolean finalReport) {
+            if (executor != null) {
+                executor.shutdown();
+                try {
+                    executor.awaitTermination(10, TimeUnit.SECONDS);
+                }
+                catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+                executor = null;
+                if (finalReport) {
+                    reporter.report(snapshot(true));
+                }
+            }
+            return this;
+        }
+
+        /**
+         * Convert the snapshots to a 2-D array with header row, which can be rendered by <code>TextTable</code>.
+         * 
+         * @param snapshots
+         *            the snapshots
+         * @return the table data
+         */
+        public static Object[][] toTable(List<Snapshot> snapshots) {
+            return toTable(snapshots, 0);
+        }
+
+        /**
+         * Convert the snapshots to a 2-D array with header row and progress bars, e.g. the rows of a live board.
+         * 
+         * @param snapshots
+         *            the snapshots
+         * @param barWidth
+         *            the width of the progress bar, 0 for no bar
+         * @return the table data
+         */
+        public static Object[][] toTable(List<Snapshot> snapshots, int barWidth) {
+            Object[][] table = new Object[snapshots.size() + 1][];
+            table[0] = new Object[] { "Name", "Progress", "Count", "Total", "Ellapsed", "Remaining", "Avg" };
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < snapshots.size(); i++) {
+                Snapshot ss = snapshots.get(i);
+                double avg = ss.current < ss.total ? ss.recentAvg : ss.overallAvg;
+                sb.setLength(0);
+                if (barWidth > 0) {
+                    appendBar(sb, ss.progressPercentage, barWidth).append(' ');
+                }
+                appendDecimal(sb, ss.progressPercentage, true, false).append('%');
+                table[i + 1] = new Object[] { ss.name, sb.toString(), ss.current, ss.total, formatMillis(ss.ellapsed),
+                        ss.current < ss.total ? formatMillis(ss.remaining) : "",
+                        appendRate(new StringBuilder(), ss.unit, avg).toString() };
+            }
+            return table;
+        }
+
+        // [#####     ]
+        private static StringBuilder appendBar(StringBuilder sb, double percentage, int width) {
+            int filled = (int) Math.max(0, Math.min(width, Math.round(percentage * width / 100)));
+            sb.append('[');
+            for (int i = 0; i < width; i++) {
+                sb.append(i < filled ? '#' : ' ');
+            }
+            return sb.append(']');
+        }
+    }
+
+    /**
+     * Serve the meters of a {@link Registry} over HTTP with the JDK built-in <code>HttpServer</code>, in Prometheus
+     * text format at <code>/metrics</code> and in JSON at <code>/metrics.json</code>.
+     * 
+     * <pre>
+     * HttpExporter exporter = new HttpExporter(registry).start(9091);
+     * // curl http://localhost:9091/metrics
+     * exporter.stop();
+     * </pre>
+     */
+    public static class HttpExporter {
+        private static final Charset UTF8 = Charset.forName("UTF-8");
+        private static final double[] QUANTILES = { 0.5, 0.99, 0.999 };
+
+        private final Registry registry;
+        // reused for every request, guarded by this
+        private final StringBuilder sb = new StringBuilder(4096);
+        private HttpServer server;
+
+        public HttpExporter(Registry registry) {
+            this.registry = registry;
+        }
+
+        /**
+         * Start the HTTP server.
+         * 
+         * @param port
+         *            the port, or 0 for any free port
+         * @return this
+         * @throws IOException
+         *             if cannot bind the port
+         */
+        public synchronized HttpExporter start(int port) throws IOException {
+            stop();
+            server = HttpServer.create(new InetSocketAddress(port), 0);
+            server.createContext("/metrics", new HttpHandler() {
+                @Override
+                public void handle(HttpExchange exchange) throws IOException {
+                    // the context matches by prefix, e.g. /metricsfoo
+                    String path = exchange.getRequestURI().getPath();
+                    boolean json = "/metrics.json".equals(path);
+                    if (!json && !"/metrics".equals(path)) {
+                        exchange.sendResponseHeaders(404, -1);
+                        exchange.close();
+                        return;
+                    }
+
+                    byte[] body = (json ? toJson() : toPrometheus()).getBytes(UTF8);
+                    exchange.getResponseHeaders().set("Content-Type",
+                            json ? "application/json; charset=utf-8" : "text/plain; version=0.0.4; charset=utf-8");
+                    exchange.sendResponseHeaders(200, body.length);
+                    OutputStream os = exchange.getResponseBody();
+                    os.write(body);
+                    os.close();
+                }
+            });
+            server.start();
+            return this;
+        }
+
+        /**
+         * @return the port the server is listening on, or -1 if not started
+         */
+        public synchronized int getPort() {
+            return server != null ? server.getAddress().getPort() : -1;
+        }
+
+        public synchronized void stop() {
+            if (server != null) {
+                server.stop(0);
+                server = null;
+            }
+        }
+
+        /**
+         * @return all meters of the registry in Prometheus text format
+         */
+        public synchronized String toPrometheus() {
+            sb.setLength(0);
+            Map<String, Performance> meters = registry.getMeters();
+            List<Snapshot> snapshots = Registry.snapshot(meters, false);
+
+            gaugeHeader("performance_count", "Current count");
+            for (Snapshot ss : snapshots) {
+                sample("performance_count", ss.name, null, null, ss.current);
+            }
+            gaugeHeader("performance_target", "Target count when complete");
+            for (Snapshot ss : snapshots) {
+                sample("performance_target", ss.name, null, null, ss.total);
+            }
+            gaugeHeader("performance_progress_ratio", "Progress between 0 and 1");
+            for (Snapshot ss : snapshots) {
+                sample("performance_progress_ratio", ss.name, null, null, ss.progressPercentage / 100);
+            }
+            gaugeHeader("performance_elapsed_seconds", "Elapsed time");
+            for (Snapshot ss : snapshots) {
+                sample("performance_elapsed_seconds", ss.name, null, null, ss.ellapsed / 1000.0);
+            }
+            gaugeHeader("performance_remaining_seconds", "Estimated remaining time");
+            for (Snapshot ss : snapshots) {
+                sample("performance_remaining_seconds", ss.name, null, null,
+                        ss.current < ss.total ? ss.remaining / 1000.0 : 0);
+            }
+            gaugeHeader("performance_rate", "Count per second");
+            for (Snapshot ss : snapshots) {
+                sample("performance_rate", ss.name, "window", "recent", ss.recentAvg);
+                sample("performance_rate", ss.name, "window", "overall", ss.overallAvg);
+                sample("performance_rate", ss.name, "window", "ewma1", ss.rate1);
+                sample("performance_rate", ss.name, "window", "ewma5", ss.rate5);
+                sample("performance_rate", ss.name, "window", "ewma15", ss.rate15);
+            }
+
+            boolean headerDone = false;
+            for (Map.Entry<String, Performance> e : meters.entrySet()) {
+                Histogram h = e.getValue().getLatencyHistogram();
+                if (h == null) {
+                    continue;
+                }
+                if (!headerDone) {
+                    sb.append("# HELP performance_latency_seconds Latency of the operations\n");
+                    sb.append("# TYPE performance_latency_seconds summary\n");
+                    headerDone = true;
+                }
+                for (double q : QUANTILES) {
+                    sample("performance_latency_seconds", e.getKey(), "quantile", Double.toString(q),
+                            h.getPercentile(q * 100) / 1e9);
+                }
+                sample("performance_latency_seconds_sum", e.getKey(), null, null, h.getMean() * h.getCount() / 1e9);
+                sample("performance_latency_seconds_count", e.getKey(), null, null, h.getCount());
+            }
+
+            return sb.toString();
+        }
+
+        private void gaugeHeader(String metric, String help) {
+            sb.append("# HELP ").append(metric).append(' ').append(help).append('\n');
+            sb.append("# TYPE ").append(metric).append(" gauge\n");
+        }
+
+        private void sample(String metric, String meter, String label, String labelValue, double value) {
+            sb.append(metric).append("{meter=\"");
+            escape(meter, false);
+            sb.append('"');
+            if (label != null) {
+                sb.append(',').append(label).append("=\"").append(labelValue).append('"');
+            }
+            sb.append("} ");
+            if (Double.isNaN(value)) {
+                sb.append("NaN");
+            }
+            else if (Double.isInfinite(value)) {
+                sb.append(value > 0 ? "+Inf" : "-Inf");
+            }
+            else if (value == (long) value) {
+                sb.append((long) value);
+            }
+            else {
+                sb.append(value);
+            }
+            sb.append('\n');
+        }
+
+        /**
+         * @return all meters of the registry in JSON
+         */
+        public synchronized String toJson() {
+            sb.setLength(0);
+            Map<String, Performance> meters = registry.getMeters();
+            List<Snapshot> snapshots = Registry.snapshot(meters, false);
+
+            sb.append('[');
+            for (int i = 0; i < snapshots.size(); i++) {
+                Snapshot ss = snapshots.get(i);
+                sb.append(i > 0 ? ",{" : "{");
+                sb.append("\"name\":");
+                jsonString(ss.name);
+                sb.append(",\"unit\":");
+                jsonString(ss.unit);
+                sb.append(",\"current\":").append(ss.current);
+                sb.append(",\"total\":").append(ss.total);
+                sb.append(",\"progressPercentage\":");
+                jsonNumber(ss.progressPercentage);
+                sb.append(",\"elapsed\":").append(ss.ellapsed);
+                sb.append(",\"estimated\":").append(ss.estimated);
+                sb.append(",\"remaining\":").append(ss.remaining);
+                sb.append(",\"recentAvg\":");
+                jsonNumber(ss.recentAvg);
+                sb.append(",\"overallAvg\":");
+                jsonNumber(ss.overallAvg);
+                sb.append(",\"rate1\":");
+                jsonNumber(ss.rate1);
+                sb.append(",\"rate5\":");
+                jsonNumber(ss.rate5);
+                sb.append(",\"rate15\":");
+                jsonNumber(ss.rate15);
+
+                Performance p = meters.get(ss.name);
+                Histogram h = p != null ? p.getLatencyHistogram() : null;
+                if (h != null) {
+                    sb.append(",\"latency\":{\"count\":").append(h.getCount());
+                    sb.append(",\"p50\":").append(h.getPercentile(50));
+                    sb.append(",\"p99\":").append(h.getPercentile(99));
+                    sb.append(",\"p999\":").append(h.getPercentile(99.9));
+                    sb.append(",\"max\":").append(h.getMax()).append('}');
+                }
+                sb.append('}');
+            }
+            sb.append(']');
+
+            return sb.toString();
+        }
+
+        private void jsonString(String s) {
+            if (s == null) {
+                sb.append("null");
+            }
+            else {
+                sb.append('"');
+                escape(s, true);
+                sb.append('"');
+            }
+        }
+
+        private void jsonNumber(double d) {
+            if (Double.isNaN(d) || Double.isInfinite(d)) {
+                sb.append("null");
+            }
+            else {
+                sb.append(d);
+            }
+        }
+
+        private void escape(String s, boolean json) {
+            if (s == null) {
+                return;
+            }
+            for (int i = 0; i < s.length(); i++) {
+                char ch = s.charAt(i);
+                if (ch == '"' || ch == '\\') {
+                    sb.append('\\').append(ch);
+                }
+                else if (ch == '\n') {
+                    sb.append("\\n");
+                }
+                else if (json && ch < 0x20) {
+                    sb.append(String.format("\\u%04x", (int) ch));
+                }
+                else {
+                    sb.append(ch);
+                }
+            }
+        }
+    }
+
+    private static boolean isJfrAvailable() {
+        try {
+            Class.forName("jdk.jfr.FlightRecorder");
+            return true;
+        }
+        catch (ClassNotFoundException ex) {
+            return false;
+        }
+        catch (LinkageError ex) {
+            return false;
+        }
+    }
+
+    /**
+     * The JDK Flight Recorder events, so the progress of a job can be correlated with GC, I/O and lock contention in
+     * the same recording. It is a separate class so <code>jdk.jfr</code> is only loaded when it is available.
+     * <p>
+     * <code>org.ellab.performance.Sample</code> is emitted when a meter adds a sample. It is disabled by default, enable
+     * it in the <code>.jfc</code> settings or by <code>Recording.enable("org.ellab.performance.Sample")</code>. When
+     * it is disabled, the cost is a check of the event setting at each sampling time. See
+     * {@link Registry#enableJfr()} for the periodic snapshots.
+     * </p>
+     */
+    private static final class Jfr {
+        @Name("org.ellab.performance.Snapshot")
+        @Label("Performance Snapshot")
+        @Category("Performance")
+        @Period("1 s")
+        @StackTrace(false)
+        static class SnapshotEvent extends Event {
+            @Label("Meter")
+            String meter;
+            @Label("Count")
+            long count;
+            @Label("Total")
+            long total;
+            @Label("Progress")
+            @Percentage
+            double progress;
+            @Label("Rate per Second")
+            double rate;
+            @Label("Elapsed")
+            @Timespan(Timespan.MILLISECONDS)
+            long elapsed;
+            @Label("Remaining")
+            @Timespan(Timespan.MILLISECONDS)
+            long remaining;
+        }
+
+        @Name("org.ellab.performance.Sample")
+        @Label("Performance Sample")
+        @Category("Performance")
+        @Enabled(false)
+        @StackTrace(false)
+        static class SampleEvent extends Event {
+            @Label("Meter")
+            String meter;
+            @Label("Count")
+            long count;
+            @Label("Total")
+            long total;
+            @Label("Progress")
+            @Percentage
+            double progress;
+            @Label("Rate per Second")
+            double rate;
+            @Label("Elapsed")
+            @Timespan(Timespan.MILLISECONDS)
+            long elapsed;
+            @Label("Remaining")
+            @Timespan(Timespan.MILLISECONDS)
+            long remaining;
+        }
+
+        private static final EventType SAMPLE_TYPE = EventType.getEventType(SampleEvent.class);
+
+        static void sample(Performance p) {
+            if (!SAMPLE_TYPE.isEnabled()) {
+                return;
+            }
+
+            SampleEvent e = new SampleEvent();
+            if (e.shouldCommit()) {
+                e.meter = p.name;
+                e.count = p.current;
+                e.total = p.total;
+                e.progress = p.progressPercentage / 100;
+                e.rate = p.current < p.total ? p.recentAvg : p.overallAvg;
+                e.elapsed = p.ellapsed;
+                e.remaining = p.current < p.total ? p.remaining : 0;
+                e.commit();
+            }
+        }
+
+        static Runnable addPeriodic(final Registry registry) {
+            Runnable hook = new Runnable() {
+                @Override
+                public void run() {
+                    for (Snapshot ss : registry.snapshot()) {
+                        SnapshotEvent e = new SnapshotEvent();
+                        e.meter = ss.name;
+                        e.count = ss.current;
+                        e.total = ss.total;
+                        e.progress = ss.progressPercentage / 100;
+                        e.rate = ss.current < ss.total ? ss.recentAvg : ss.overallAvg;
+                        e.elapsed = ss.ellapsed;
+                        e.remaining = ss.current < ss.total ? ss.remaining : 0;
+                        e.commit();
+                    }
+                }
+            };
+            FlightRecorder.addPeriodicEvent(SnapshotEvent.class, hook);
+            return hook;
+        }
+
+        static void removePeriodic(Runnable hook) {
+            FlightRecorder.removePeriodicEvent(hook);
+        }
+    }
+
+    /**
+     * A fixed memory log-linear histogram of latencies (or any non-negative value), similar to HdrHistogram.
+     * <p>
+     * Values below <code>2^precisionBits</code> are exact, larger values are grouped into buckets with relative error
+     * no more than <code>2^-precisionBits</code>. Values larger than <code>maxValue</code> are counted as
+     * <code>maxValue</code> (but {@link #getMax()} is exact). It is thread-safe and histograms of same setting can be
+     * merged, e.g. one per thread or per interval.
+     * </p>
+     */
+    public static class Histogram {
+        /** 1 hour in nanoseconds */
+        public static final long DEFAULT_MAX_VALUE = 3600L * 1000000000L;
+        /** 2^-6, i.e. about 1.6% relative error */
+        public static final int DEFAULT_PRECISION_BITS = 6;
+
+        private final long maxValue;
+        private final int precisionBits;
+        private final AtomicLongArray counts;
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+        private final AtomicLong min = new AtomicLong(Long.MAX_VALUE);
+        private final AtomicLong max = new AtomicLong(-1);
+
+        public Histogram() {
+            this(DEFAULT_MAX_VALUE, DEFAULT_PRECISION_BITS);
+        }
+
+        public Histogram(long maxValue, int precisionBits) {
+            if (maxValue < 1 || precisionBits < 1 || precisionBits > 16) {
+                throw new IllegalArgumentException("invalid maxValue or precisionBits");
+            }
+            this.maxValue = maxValue;
+            this.precisionBits = precisionBits;
+            counts = new AtomicLongArray(indexOf(maxValue) + 1);
+        }
+
+        private int indexOf(long value) {
+            if (value < (1L << precisionBits)) {
+                return (int) value;
+            }
+            int shift = 63 - Long.numberOfLeadingZeros(value) - precisionBits;
+            return (shift << precisionBits) + (int) (value >>> shift);
+        }
+
+        // the highest value in the bucket
+        private long valueOf(int index) {
+            if (index < (1 << precisionBits)) {
+                return index;
+            }
+            int shift = (index >>> precisionBits) - 1;
+            long m = index - ((long) shift << precisionBits);
+            return ((m + 1) << shift) - 1;
+        }
+
+        /**
+         * Record a value.
+         * 
+         * @param value
+         *            the value, negative value is counted as 0
+         */
+        public void record(long value) {
+            value = Math.max(value, 0);
+            counts.incrementAndGet(indexOf(Math.min(value, maxValue)));
+            count.increment();
+            sum.add(value);
+
+            long m = max.get();
+            while (value > m && !max.compareAndSet(m, value)) {
+                m = max.get();
+            }
+            m = min.get();
+            while (value < m && !min.compareAndSet(m, value)) {
+                m = min.get();
+            }
+        }
+
+        /**
+         * Add all the values of another histogram into this histogram.
+         * 
+         * @param that
+         *            the histogram with same <code>maxValue</code> and <code>precisionBits</code>
+         * @return this
+         */
+        public Histogram add(Histogram that) {
+            if (that.maxValue != maxValue || that.precisionBits != precisionBits) {
+                throw new IllegalArgumentException("cannot add histogram of different setting");
+            }
+            for (int i = 0; i < counts.length(); i++) {
+                long c = that.counts.get(i);
+                if (c > 0) {
+                    counts.addAndGet(i, c);
+                }
+            }
+            count.add(that.count.sum());
+            sum.add(that.sum.sum());
+            long m = that.max.get();
+            long current = max.get();
+            while (m > current && !max.compareAndSet(current, m)) {
+                current = max.get();
+            }
+            m = that.min.get();
+            current = min.get();
+            while (m < current && !min.compareAndSet(current, m)) {
+                current = min.get();
+            }
+            return this;
+        }
+
+        /**
+         * Move all the values recorded so far to a new histogram and reset this histogram, e.g. to report the
+         * latencies of each interval. No value recorded concurrently will be lost.
+         * 
+         * @return the histogram of the values recorded since last call
+         */
+        public Histogram getIntervalHistogram() {
+            Histogram h = new Histogram(maxValue, precisionBits);
+            long n = 0;
+            for (int i = 0; i < counts.length(); i++) {
+                long c = counts.getAndSet(i, 0);
+                if (c > 0) {
+                    h.counts.set(i, c);
+                    n += c;
+                }
+            }
+            h.count.add(n);
+            // sum, min and max are best effort under concurrent recording
+            h.sum.add(sum.sumThenReset());
+            h.min.set(min.getAndSet(Long.MAX_VALUE));
+            h.max.set(max.getAndSet(-1));
+            count.add(-n);
+            return h;
+        }
+
+        public long getCount() {
+            return count.sum();
+        }
+
+        /**
+         * @return the min value, or 0 if no value
+         */
+        public long getMin() {
+            long m = min.get();
+            return m == Long.MAX_VALUE ? 0 : m;
+        }
+
+        /**
+         * @return the max value, or 0 if no value
+         */
+        public long getMax() {
+            return Math.max(max.get(), 0);
+        }
+
+        public double getMean() {
+            long n = count.sum();
+            return n > 0 ? sum.sum() * 1.0 / n : 0;
+        }
+
+        /**
+         * Get the value at the percentile.
+         * 
+         * @param percentile
+         *            the percentile, e.g. 99.9
+         * @return the value, or 0 if no value
+         */
+        public long getPercentile(double percentile) {
+            long n = 0;
+            for (int i = 0; i < counts.length(); i++) {
+                n += counts.get(i);
+            }
+            if (n == 0) {
+                return 0;
+            }
+
+            long target = Math.max(1, (long) Math.ceil(Math.min(percentile, 100) / 100.0 * n));
+            long cumulative = 0;
+            for (int i = 0; i < counts.length(); i++) {
+                cumulative += counts.get(i);
+                if (cumulative >= target) {
+                    // the last bucket also holds the values larger than maxValue
+                    return i == counts.length() - 1 ? getMax() : Math.min(valueOf(i), getMax());
+                }
+            }
+            return getMax();
+        }
+
+        /**
+         * Describe the histogram with the values in nanoseconds, e.g.
+         * <code>count=1000, p50=1.2ms, p99=5.1ms, p99.9=12.4ms, max=20.3ms</code>.
+         * 
+         * @return the description
+         */
+        public String getDesc() {
+            return "count=" + getCount() + ", p50=" + nanosToStr(getPercentile(50)) + ", p99="
+                    + nanosToStr(getPercentile(99)) + ", p99.9=" + nanosToStr(getPercentile(99.9)) + ", max="
+                    + nanosToStr(getMax());
+        }
+
+        private static String nanosToStr(long nanos) {
+            if (nanos < 1000) {
+                return nanos + "ns";
+            }
+            else if (nanos < 1000000) {
+                return Math.round(nanos / 100.0) / 10.0 + "us";
+            }
+            else if (nanos < 1000000000) {
+                return Math.round(nanos / 100000.0) / 10.0 + "ms";
+            }
+            else {
+                return Math.round(nanos / 100000000.0) / 10.0 + "s";
+            }
+        }
+    }
+
+    /**
+     * A fixed memory, multi-resolution round-robin time series of the count, so the throughput of a long job can be
+     * analyzed after it ends, e.g. when it collapsed. Each level is a ring of buckets of a resolution, e.g. 3600
+     * buckets of 1 second and 1440 buckets of 1 minute; the oldest bucket of a level is reused when the time moves on.
+     * <p>
+     * The count between two samples is spread over the buckets proportionally to time, so the buckets finer than the
+     * sampling interval are still smooth. A bucket without any sample, e.g. the job is stuck, is 0.
+     * </p>
+     */
+    public static class TimeSeries {
+        private long[] resolutions = new long[0];
+        private long[][] counts = new long[0][];
+        // the index (time / resolution) of the bucket in the slot, to find the slot of an old bucket
+        private long[][] indexes = new long[0][];
+        private long[] firstIndex = new long[0];
+        private long lastTime = -1;
+        private long lastCount;
+
+        /**
+         * Per-second for the last hour and per-minute for the last day, about 80KB.
+         */
+        public TimeSeries() {
+            this(1000, 3600);
+            addLevel(60 * 1000, 1440);
+        }
+
+        public TimeSeries(long resolution, int capacity) {
+            addLevel(resolution, capacity);
+        }
+
+        /**
+         * Add a level of buckets.
+         * 
+         * @param resolution
+         *            the time of a bucket in milliseconds
+         * @param capacity
+         *            the number of buckets
+         * @return this
+         */
+        public synchronized TimeSeries addLevel(long resolution, int capacity) {
+            if (resolution <= 0 || capacity <= 0) {
+                throw new IllegalArgumentException("resolution and capacity must be positive");
+            }
+            int n = resolutions.length;
+            resolutions = Arrays.copyOf(resolutions, n + 1);
+            counts = Arrays.copyOf(counts, n + 1);
+            indexes = Arrays.copyOf(indexes, n + 1);
+            firstIndex = Arrays.copyOf(firstIndex, n + 1);
+            resolutions[n] = resolution;
+            counts[n] = new long[capacity];
+            indexes[n] = new long[capacity];
+            Arrays.fill(indexes[n], -1);
+            firstIndex[n] = -1;
+            return this;
+        }
+
+        synchronized void reset(long time, long count) {
+            for (int level = 0; level < resolutions.length; level++) {
+                Arrays.fill(counts[level], 0);
+                Arrays.fill(indexes[level], -1);
+                firstIndex[level] = -1;
+            }
+            lastTime = time;
+            lastCount = count;
+        }
+
+        /**
+         * Add a sample, the count since the last sample is spread over the time between them.
+         * 
+         * @param time
+         *            the time in milliseconds
+         * @param count
+         *            the total count
+         */
+        public synchronized void add(long time, long count) {
+            if (lastTime < 0 || time < lastTime) {
+                lastTime = time;
+                lastCount = count;
+                return;
+            }
+
+            for (int level = 0; level < resolutions.length; level++) {
+                add(level, lastTime, time, count - lastCount);
+            }
+            lastTime = time;
+            lastCount = count;
+        }
+
+        private void add(int level, long from, long to, long delta) {
+            long resolution = resolutions[level];
+            long[] c = counts[level];
+            long[] idx = indexes[level];
+            long toIndex = to / resolution;
+            // the buckets older than the capacity are gone anyway
+            long fromIndex = Math.max(from / resolution, toIndex - c.length + 1);
+            if (firstIndex[level] < 0) {
+                firstIndex[level] = fromIndex;
+            }
+
+            long added = 0;
+            if (fromIndex * resolution > from) {
+                // the part of the dropped buckets
+                added = Math.round(delta * (double) (fromIndex * resolution - from) / (to - from));
+            }
+            for (long i = fromIndex; i <= toIndex; i++) {
+                int slot = (int) (i % c.length);
+                if (idx[slot] != i) {
+                    idx[slot] = i;
+                    c[slot] = 0;
+                }
+                long part;
+                if (i == toIndex || to == from) {
+                    part = delta - added;
+                }
+                else {
+                    // proportional to the time of this bucket between from and to
+                    double elapsed = (i + 1) * resolution - from;
+                    part = Math.round(delta * elapsed / (to - from)) - added;
+                }
+                c[slot] += part;
+                added += part;
+            }
+        }
+
+        public synchronized int getLevels() {
+            return resolutions.length;
+        }
+
+        /**
+         * Get the buckets of a level from the oldest to the latest.
+         * 
+         * @param level
+         *            the level, 0 is the first level
+         * @return the array of {start time in milliseconds, count}
+         */
+        public synchronized long[][] getBuckets(int level) {
+            long resolution = resolutions[level];
+            long[] c = counts[level];
+            long[] idx = indexes[level];
+            if (firstIndex[level] < 0 || lastTime < 0) {
+                return new long[0][];
+            }
+            long last = lastTime / resolution;
+            long first = Math.max(firstIndex[level], last - c.length + 1);
+            long[][] buckets = new long[(int) (last - first + 1)][];
+            for (long i = first; i <= last; i++) {
+                int slot = (int) (i % c.length);
+                buckets[(int) (i - first)] = new long[] { i * resolution, idx[slot] == i ? c[slot] : 0 };
+            }
+            return buckets;
+        }
+
+        /**
+         * Write all levels as CSV with header <code>resolution_ms,time,count,rate_per_sec</code>.
+         * 
+         * @param out
+         *            the output
+         * @throws IOException
+         *             if fails to write
+         */
+        public void writeCsv(Appendable out) throws IOException {
+            SimpleDateFormat datefmt = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+            StringBuilder sb = new StringBuilder();
+            out.append("resolution_ms,time,count,rate_per_sec\n");
+            for (int level = 0; level < getLevels(); level++) {
+                long resolution = resolutions[level];
+                for (long[] bucket : getBuckets(level)) {
+                    sb.setLength(0);
+                    sb.append(resolution).append(',').append(datefmt.format(new Date(bucket[0]))).append(',');
+                    sb.append(bucket[1]).append(',');
+                    appendDecimal(sb, bucket[1] * 1000.0 / resolution, false, false).append('\n');
+                    out.append(sb);
+                }
+            }
+        }
+
+        public String toCsv() {
+            StringBuilder sb = new StringBuilder();
+            try {
+                writeCsv(sb);
+            }
+            catch (IOException ex) {
+                // never for StringBuilder
+                ;
+            }
+            return sb.toString();
+        }
+    }
+
+    /**
+     * A <code>Performance</code> for many threads updating the same meter, e.g. the workers of a thread pool.
+     * <p>
+     * The count is kept in a <code>LongAdder</code> so the threads do not contend on a lock on every
+     * <code>inc()</code>. When the sampling time is reached, only the thread that wins the CAS on the next sampling
+     * time records the sample and gets <code>true</code> from <code>inc()</code>. The <code>xxxSynchronized()</code>
+     * methods are the same as the non-synchronized one.
+     * </p>
+     * <p>
+     * <code>addSample()</code> sets the absolute count and is meant for single producer only.
+     * </p>
+     */
+    public static class Concurrent extends Performance {
+        private final LongAdder counter = new LongAdder();
+        private final AtomicLong nextSampling;
+
+        public Concurrent(long total) {
+            this(total, DEFAULT_SAMPLING_INTERVAL);
+        }
+
+        public Concurrent(long total, String unit) {
+            this(total, unit, DEFAULT_SAMPLING_INTERVAL);
+        }
+
+        public Concurrent(long total, int samplingInterval) {
+            this(total, null, samplingInterval, DEFAULT_SAMPLE_SIZE);
+        }
+
+        public Concurrent(long total, String unit, int samplingInterval) {
+            this(total, unit, samplingInterval, DEFAULT_SAMPLE_SIZE);
+        }
+
+        public Concurrent(long total, String unit, int samplingInterval, int sampleSize) {
+            this(total, unit, samplingInterval, sampleSize, MONOTONIC_CLOCK);
+        }
+
+        public Concurrent(long total, String unit, int samplingInterval, int sampleSize, Clock clock) {
+            super(total, unit, samplingInterval, sampleSize, clock);
+            nextSampling = new AtomicLong(super.nextSamplingTime);
+        }
+
+        @Override
+        public boolean inc() {
+            return inc(1, false);
+        }
+
+        @Override
+        public Performance incAlways() {
+            inc(1, true);
+            return this;
+        }
+
+        @Override
+        public boolean inc(long inc, boolean forceAdd) {
+            Throttle t = super.throttle;
+            if (t != null) {
+                t.acquire(inc);
+            }
+
+            return incUnthrottled(inc, forceAdd);
+        }
+
+        @Override
+        boolean incUnthrottled(long inc, boolean forceAdd) {
+            counter.add(inc);
+            return sampleIfDue(forceAdd);
+        }
+
+        @Override
+        public boolean incSynchronized() {
+            return inc();
+        }
+
+        @Override
+        public boolean incSynchronized(long inc, boolean forceAdd) {
+            return inc(inc, forceAdd);
+        }
+
+        @Override
+        public Performance incAlwaysSynchronized() {
+            return incAlways();
+        }
+
+        @Override
+        public boolean addSample(long count, boolean forceAdd) {
+            counter.add(count - counter.sum());
+            return sampleIfDue(forceAdd);
+        }
+
+        @Override
+        public boolean addSampleSynchronized(long count, boolean forceAdd) {
+            return addSample(count, forceAdd);
+        }
+
+        @Override
+        public Performance addSampleAlwaysSynchronized(long count) {
+            return addSampleAlways(count);
+        }
+
+        @Override
+        public synchronized Performance restore(InputStream in) throws IOException {
+            super.restore(in);
+            counter.add(super.latestSample - counter.sum());
+            nextSampling.set(super.nextSamplingTime);
+            return this;
+        }
+
+        private boolean sampleIfDue(boolean forceAdd) {
+            long now = super.clock.millis();
+            long next = nextSampling.get();
+            if (forceAdd) {
+                nextSampling.set(now + super.samplingInterval);
+            }
+            else if (now < next || !nextSampling.compareAndSet(next, now + super.samplingInterval)) {
+                // not yet or other thread is sampling
+                return false;
+            }
+
+            long total = getTotal();
+            long count = counter.sum();
+            synchronized (this) {
+                super.addSample(count < 0 || count > total ? total : count, true);
+            }
+
+            return true;
+        }
+    }
+
+    private static void coverage() {
+        Performance p = new Performance(10);
+        p.calcResult(0, 0); // wont die
+//        p.addSampleSynchronized(1, true);
+//        p.addSampleAlwaysSynchronized(2);
+//        p.incSynchronized();
+//        p.incAlwaysSynchronized();
+//        if (p.latestSample != 4) {
+//            System.out.println("\nFAIL in coverage()\n");
+//        }
+        p.getTotal();
+        p.getUnit();
+        p.getSampleSize();
+        p.getStart();
+        p.getTotalSamples();
+        p.getCurrent();
+        p.getProgressPercentage();
+        p.getEllapsed();
+        p.getEstimated();
+        p.getRemaining();
+        p.getRecentAvg();
+        p.getOverallAvg();
+        p.getResultDesc();
+        p.getResultDesc("");
+    }
+
+    // the update method to benchmark, it runs the given number of operations on the meter
+    private abstract static class Bench {
+        private final String name;
+        private final boolean threadSafe;
+
+        private Bench(String name, boolean threadSafe) {
+            this.name = name;
+            this.threadSafe = threadSafe;
+        }
+
+        Performance create() {
+            return new Performance(Long.MAX_VALUE);
+        }
+
+        abstract void run(Performance p, long ops);
+    }
+
+    /**
+     * Measure the cost of the update methods in ns/op, from 1 thread to <code>maxThreads</code> (doubling), so we know
+     * where it is safe to leave the meters on in production. Run by <code>java Performance bench [maxThreads]</code>.
+     * <p>
+     * Each run has a warm up before the measurement so the JIT compiles the loop first. The ns/op is the time of one
+     * operation seen by one thread; the Mops/s is the total throughput of all threads.
+     * </p>
+     * 
+     * @param maxThreads
+     *            the maximum number of threads
+     * @param millis
+     *            the measurement time of each run in milliseconds
+     */
+    private static void benchmark(int maxThreads, long millis) {
+        Bench[] benches = new Bench[] { new Bench("inc()", false) {
+            @Override
+            void run(Performance p, long ops) {
+                for (long i = 0; i < ops; i++) {
+                    p.inc();
+                }
+            }
+        }, new Bench("addSample()", false) {
+            @Override
+            void run(Performance p, long ops) {
+                long count = p.latestSample;
+                for (long i = 0; i < ops; i++) {
+                    p.addSample(++count);
+                }
+            }
+        }, new Bench("incSynchronized()", true) {
+            @Override
+            void run(Performance p, long ops) {
+                for (long i = 0; i < ops; i++) {
+                    p.incSynchronized();
+                }
+            }
+        }, new Bench("Concurrent.inc()", true) {
+            @Override
+            Performance create() {
+                return new Concurrent(Long.MAX_VALUE);
+            }
+
+            @Override
+            void run(Performance p, long ops) {
+                for (long i = 0; i < ops; i++) {
+                    p.inc();
+                }
+            }
+        }, new Bench("Local.inc()", true) {
+            @Override
+            void run(Performance p, long ops) {
+                Local local = p.local();
+                for (long i = 0; i < ops; i++) {
+                    local.inc();
+                }
+            }
+        }, new Bench("recordLatency()", true) {
+            @Override
+            void run(Performance p, long ops) {
+                for (long i = 0; i < ops; i++) {
+                    p.recordLatency(i & 0xffff);
+                }
+            }
+        } };
+
+        System.out.println(String.format("%-20s %8s %12s %12s", "Method", "Threads", "ns/op", "Mops/s"));
+        for (Bench bench : benches) {
+            for (int threads = 1; threads <= (bench.threadSafe ? maxThreads : 1); threads *= 2) {
+                benchmark(bench, threads, Math.max(millis / 2, 1)); // warm up
+                double[] result = benchmark(bench, threads, millis);
+                System.out.println(String.format("%-20s %8d %12.2f %12.2f", bench.name, threads, result[0],
+                        result[1]));
+            }
+        }
+    }
+
+    // return ns/op per thread and the total Mops/s
+    private static double[] benchmark(final Bench bench, int threadCount, long millis) {
+        final int batch = 10000;
+        final Performance p = bench.create();
+        final boolean[] stop = new boolean[1];
+        final long[] ops = new long[threadCount];
+        final long[] nanos = new long[threadCount];
+        Thread[] threads = new Thread[threadCount];
+        for (int i = 0; i < threadCount; i++) {
+            final int index = i;
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    long start = System.nanoTime();
+                    long n = 0;
+                    while (true) {
+                        synchronized (stop) {
+                            if (stop[0]) {
+                                break;
+                            }
+                        }
+                        bench.run(p, batch);
+                        n += batch;
+                    }
+                    nanos[index] = System.nanoTime() - start;
+                    ops[index] = n;
+                }
+            }, "Performance-Bench-" + i);
+        }
+        for (int i = 0; i < threadCount; i++) {
+            threads[i].start();
+        }
+        try {
+            Thread.sleep(millis);
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (stop) {
+            stop[0] = true;
+        }
+
+        double nsPerOp = 0;
+        double opsPerSec = 0;
+        for (int i = 0; i < threadCount; i++) {
+            try {
+                threads[i].join();
+            }
+            catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            nsPerOp += nanos[i] * 1.0 / Math.max(ops[i], 1) / threadCount;
+            opsPerSec += ops[i] * 1000.0 / Math.max(nanos[i], 1);
+        }
+        return new double[] { nsPerOp, opsPerSec };
+    }
+
+    public static void main(String[] args) {
+        if (args.length > 0 && "bench".equals(args[0])) {
+            benchmark(args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors(), 1000);
+            return;
+        }
+
         Performance p = new Performance(10, 0);
         for (int i = 1; i <= 10; i++) {
             System.out.println(p.addSampleAlways(i).getResultDescWithAvg());
         }
 
+        System.out.println();
+        System.out.println("----------------");
+        System.out.println("With ManualClock");
+        System.out.println("----------------");
+        System.out.println();
+        ManualClock clock = new ManualClock(0);
+        p = new Performance(100, "rows", 1000, DEFAULT_SAMPLE_SIZE, clock);
+        for (int i = 1; i <= 10; i++) {
+            clock.advance(1000);
+            p.addSample(i * 10);
+            System.out.println(p.getResultDescWithAvg());
+        }
+
+        System.out.println();
+        System.out.println("--------------------------------------");
+        System.out.println("Save and Restore after 1 Hour Downtime");
+        System.out.println("--------------------------------------");
+        System.out.println();
+        clock = new ManualClock(0);
+        p = new Performance(1000, "rows", 1000, DEFAULT_SAMPLE_SIZE, clock);
+        for (int i = 1; i <= 30; i++) {
+            clock.advance(1000);
+            p.addSample(i * 10);
+        }
+        System.out.println(p.getResultDescWithAvg("Saved"));
+        try {
+            File stateFile = File.createTempFile("performance", ".state");
+            stateFile.deleteOnExit();
+            p.save(stateFile);
+            clock.advance(3600 * 1000);
+            p = new Performance(1000, "rows", 1000, DEFAULT_SAMPLE_SIZE, clock);
+            p.restore(stateFile);
+            System.out.println(p.getResultDescWithAvg("Restored"));
+            stateFile.delete();
+        }
+        catch (IOException ex) {
+            ex.printStackTrace();
+        }
+
+        System.out.println();
+        System.out.println("-----------------------------------------");
+        System.out.println("Time Series, throughput collapsed for 20s");
+        System.out.println("-----------------------------------------");
+        System.out.println();
+        clock = new ManualClock(0);
+        p = new Performance(10000, "rows", 1000, DEFAULT_SAMPLE_SIZE, clock);
+        p.setTimeSeries(new TimeSeries(10 * 1000, 360));
+        for (int i = 1; i <= 60; i++) {
+            clock.advance(1000);
+            p.addSample(p.getCurrent() + (i > 20 && i <= 40 ? 5 : 100));
+        }
+        System.out.print(p.getTimeSeries().toCsv());
+
+        System.out.println();
+        System.out.println("----------------------------");
+        System.out.println("Stall and Slowdown Detection");
+        System.out.println("----------------------------");
+        System.out.println();
+        clock = new ManualClock(0);
+        Registry alertRegistry = new Registry().setAlert(30 * 1000, 0.5, new AlertListener() {
+            @Override
+            public void alert(Alert alert, String name, Performance meter, String message) {
+                System.out.println(formatMillis(meter.getClock().millis()) + " " + alert + " " + name + ": " + message);
+            }
+        });
+        p = alertRegistry.register("Load", new Performance(100000, "rows", 1000, 10, clock));
+        for (int i = 1; i <= 120; i++) {
+            clock.advance(1000);
+            if (i <= 40 || i > 90) {
+                p.addSample(p.getCurrent() + (i <= 30 || i > 100 ? 100 : 10));
+            }
+            alertRegistry.checkAlerts();
+        }
+
+        System.out.println();
+        System.out.println("-----------------");
+        System.out.println("Latency Histogram");
+        System.out.println("-----------------");
+        System.out.println();
+        p = new Performance(100000);
+        for (int i = 0; i < 100000; i++) {
+            long opStart = System.nanoTime();
+            Math.sqrt(Math.random());
+            p.recordLatency(System.nanoTime() - opStart);
+            p.inc();
+        }
+        System.out.println(p.getLatencyHistogram().getDesc());
+
+        System.out.println();
+        System.out.println("------------------------");
+        System.out.println("Registry with a Reporter");
+        System.out.println("------------------------");
+        System.out.println();
+        Registry registry = new Registry();
+        registry.startReporter(500, new PrintWriterReporter(new PrintWriter(System.out)));
+        Thread[] threads = new Thread[3];
+        for (int i = 0; i < threads.length; i++) {
+            final Performance meter = registry.register("Job-" + i, new Performance.Concurrent(1000 * (i + 1), "rows"));
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (long i = 1; i <= meter.getTotal(); i++) {
+                        try {
+                            Thread.sleep(1);
+                        }
+                        catch (InterruptedException ex) {
+                            return;
+                        }
+                        meter.inc();
+                    }
+                    meter.inc(0, true);
+                }
+            });
+            threads[i].start();
+        }
+        for (int i = 0; i < threads.length; i++) {
+            try {
+                threads[i].join();
+            }
+            catch (InterruptedException ex) {
+                ex.printStackTrace();
+            }
+        }
+        registry.stopReporter();
+
+        System.out.println();
+        System.out.println("-------------------------");
+        System.out.println("EWMA_5 with rate slowdown");
+        System.out.println("-------------------------");
+        System.out.println();
+        clock = new ManualClock(0);
+        p = new Performance(200, "rows", 1000, DEFAULT_SAMPLE_SIZE, clock).setEstimator(Estimator.EWMA_5);
+        for (int i = 1, count = 0; count < 200; i++) {
+            clock.advance(1000);
+            count = Math.min(200, count + (i <= 5 ? 20 : 5));
+            p.addSample(count);
+            System.out.println(p.getResultDescWithAvg());
+        }
+
+        System.out.println();
+        System.out.println("-----------");
+        System.out.println("Multi-stage");
+        System.out.println("-----------");
+        System.out.println();
+        clock = new ManualClock(0);
+        Performance job = new Performance(100, "%", 1000, DEFAULT_SAMPLE_SIZE, clock);
+        Performance extract = job.addChild("Extract", new Performance(1000, "rows", 1000, DEFAULT_SAMPLE_SIZE, clock));
+        Performance transform = job.addChild("Transform",
+                new Performance(1000, "rows", 1000, DEFAULT_SAMPLE_SIZE, clock), 2);
+        Performance load = job.addChild("Load", new Performance(1000, "rows", 1000, DEFAULT_SAMPLE_SIZE, clock));
+        for (int i = 1; i <= 10; i++) {
+            clock.advance(1000);
+            extract.addSample(Math.min(1000, i * 200));
+            transform.addSample(Math.min(extract.getCurrent(), i * 60));
+            load.addSample(Math.min(transform.getCurrent(), i * 90));
+            System.out.println(job.getResultDescWithAvg("Job") + ", bottleneck: " + job.getBottleneck().getName());
+        }
+
         // test multi-thread
         System.out.println();
         System.out.println("-----------------------------");
         System.out.println("Multi Thread with addSample()");
         System.out.println("-----------------------------");
         System.out.println();
-        System.out.println("Expected exception NoSuchElementException or NullPointerException");
+        System.out.println("Not thread-safe, expected inconsistent result or exception");
         System.out.println();
-        Thread[] threads = new Thread[10];
+        threads = new Thread[10];
         final Performance pt = new Performance(1000000 * 10, 0);
         for (int i = 0; i < threads.length; i++) {
             threads[i] = new Thread(new Runnable() {
@@ -335,7 +3153,7 @@ public class Performance {
                         try {
                             pt.addSample(i, false);
                         }
-                        catch (Exception ex) { // Expected NoSuchElementException
+                        catch (Exception ex) {
                             System.out.println(ex.getClass().getName());
                             return;
                         }
@@ -360,6 +3178,7 @@ public class Performance {
         System.out.println("Multi Thread with addSampleSynchronized()");
         System.out.println("-----------------------------------------");
         System.out.println();
+        long startTime = System.currentTimeMillis();
         threads = new Thread[10];
         final Performance pt2 = new Performance(1000000 * 10, 0);
         for (int i = 0; i < threads.length; i++) {
@@ -383,7 +3202,113 @@ public class Performance {
                 ex.printStackTrace();
             }
         }
-        System.out.println("No exception");
+        System.out.println("No exception, " + (System.currentTimeMillis() - startTime) + "ms");
+
+        System.out.println();
+        System.out.println("-------------------------------");
+        System.out.println("Multi Thread with Concurrent.inc");
+        System.out.println("-------------------------------");
+        System.out.println();
+        startTime = System.currentTimeMillis();
+        threads = new Thread[10];
+        final Performance pt3 = new Performance.Concurrent(1000000 * 10);
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (long i = 1; i <= 1000000; i++) {
+                        if (pt3.inc()) {
+                            System.out.println(pt3.getResultDesc());
+                        }
+                    }
+                }
+            });
+        }
+        for (int i = 0; i < threads.length; i++) {
+            threads[i].start();
+        }
+        for (int i = 0; i < threads.length; i++) {
+            try {
+                threads[i].join();
+            }
+            catch (InterruptedException ex) {
+                ex.printStackTrace();
+            }
+        }
+        pt3.inc(0, true);
+        System.out.println(pt3.getResultDescWithAvg() + ", " + (System.currentTimeMillis() - startTime) + "ms");
+
+        System.out.println();
+        System.out.println("-------------------------------");
+        System.out.println("Multi Thread with Local handles");
+        System.out.println("-------------------------------");
+        System.out.println();
+        startTime = System.currentTimeMillis();
+        threads = new Thread[10];
+        final Performance pt4 = new Performance(1000000 * 10);
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Local local = pt4.local();
+                    for (long i = 1; i <= 1000000; i++) {
+                        local.inc();
+                    }
+                }
+            });
+        }
+        for (int i = 0; i < threads.length; i++) {
+            threads[i].start();
+        }
+        for (int i = 0; i < threads.length; i++) {
+            try {
+                while (threads[i].isAlive()) {
+                    threads[i].join(100);
+                    if (pt4.poll()) {
+                        System.out.println(pt4.getResultDesc());
+                    }
+                }
+            }
+            catch (InterruptedException ex) {
+                ex.printStackTrace();
+            }
+        }
+        pt4.poll(true);
+        System.out.println(pt4.getResultDescWithAvg() + ", " + (System.currentTimeMillis() - startTime) + "ms");
+
+        System.out.println();
+        System.out.println("------------------------------");
+        System.out.println("Throttle at 20000/s, 4 threads");
+        System.out.println("------------------------------");
+        System.out.println();
+        startTime = System.currentTimeMillis();
+        threads = new Thread[4];
+        final Performance pt5 = new Performance.Concurrent(60000, "rows").throttle(20000);
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (long i = 1; i <= 15000; i++) {
+                        if (pt5.inc()) {
+                            System.out.println(pt5.getResultDescWithAvg());
+                        }
+                    }
+                }
+            });
+        }
+        for (int i = 0; i < threads.length; i++) {
+            threads[i].start();
+        }
+        for (int i = 0; i < threads.length; i++) {
+            try {
+                threads[i].join();
+            }
+            catch (InterruptedException ex) {
+                ex.printStackTrace();
+            }
+        }
+        pt5.inc(0, true);
+        System.out.println(pt5.getResultDescWithAvg() + ", " + (System.currentTimeMillis() - startTime) + "ms");
 
         System.out.println();
         System.out.println("--------------");
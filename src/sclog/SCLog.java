@@ -16,9 +16,21 @@
  *  specific language governing permissions and limitations
  *  under the License.
  */
-import java.lang.reflect.Method;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.LogManager;
 
 /**
  * Single Class Logger without compile time dependency.
@@ -26,145 +38,790 @@ import java.util.Date;
  * Dynamic detect log4j, commons-logging and java.util.logging. Use
  * <code>-Dorg.ellab.sclog.log=log4j,commons,java</code> to define the preferred logging framework.
  * <p>
- * WARNING: This class is not designed for performance. Used for testing / simple application only.
+ * The methods of the logging framework are looked up once as <code>MethodHandle</code> in static final fields, so a
+ * log call is a direct call which can be inlined by the JIT, without the reflection overhead.
+ * </p>
+ * <p>
+ * The enabled levels are cached in each logger, so a disabled <code>debug()</code> costs a field read and a branch.
+ * Use the <code>Supplier</code> or the <code>{}</code> parameterized message to build the message only when enabled,
+ * e.g. <code>log.debug("row {} of {}", i, total)</code>. The cache is refreshed when the java.util.logging
+ * configuration is read, and every second for log4j and commons-logging which have no change listener. Use
+ * {@link #refreshLevels()} and {@link #setLevelRefreshInterval(long)} after the levels are changed in other ways.
+ * </p>
+ * <p>
+ * {@link #startAsync(int, Overflow)} moves the I/O of logging to a writer thread, see {@link Overflow}.
  * </p>
  * 
  * @author http://twitter.com/angusdev
  * @version 1.0
  */
 public class SCLog {
-    private static SimpleDateFormat datefmt = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+    // the formatted date time of the current second, only the milliseconds are rendered for each log
+    private static volatile Second second = new Second(Long.MIN_VALUE, null);
+    // the line buffer of System.out output
+    private static final ThreadLocal<StringBuilder> lineBuffer = new ThreadLocal<StringBuilder>() {
+        @Override
+        protected StringBuilder initialValue() {
+            return new StringBuilder(256);
+        }
+    };
     private static final String[] LEVEL = { "fatal", "error", "warn", "info", "debug" };
+    private static final MethodType LOG_TYPE = MethodType.methodType(void.class, Object.class);
+    private static final MethodType LOG_THROWABLE_TYPE = MethodType.methodType(void.class, Object.class,
+            Throwable.class);
+    // the handles in Backend, the first parameter is the logger
+    private static final MethodType LOGGER_LOG_TYPE = MethodType.methodType(void.class, Object.class, Object.class);
+    private static final MethodType LOGGER_LOG_THROWABLE_TYPE = MethodType.methodType(void.class, Object.class,
+            Object.class, Throwable.class);
+    private static final MethodType LOGGER_ENABLED_TYPE = MethodType.methodType(boolean.class, Object.class);
+
+    private static final ConcurrentMap<String, SCLog> loggers = new ConcurrentHashMap<String, SCLog>();
+    // increased when the levels may be changed, the loggers refresh the cached flags lazily
+    private static volatile int levelGeneration;
+    private static Timer levelRefreshTimer;
+    // set by setLevelRefreshInterval(), the default interval does not override it
+    private static boolean levelRefreshConfigured;
+    private static final long DEFAULT_LEVEL_REFRESH_INTERVAL = 1000;
+    private static volatile AsyncWriter asyncWriter;
 
-    private static Class<?> logClass;
-    private static String logType;
-    // [0] log(String)
-    // [1] log(Object)
-    // [2] log(String, Throwable)
-    // [3] log(Object, Throwable)
-    private static Method[][] logMethod = new Method[5][];
-    private static Method createMethod;
+    // the logger of the logging framework, null if there is none
+    private final Object logger;
+    // bit (1 << level) is set if the level is enabled, valid if generation == levelGeneration
+    private volatile int enabledFlags;
+    private volatile int generation = -1;
 
-    private Object log;
+    private SCLog(Object logger) {
+        this.logger = logger;
+    }
 
-    private SCLog(Object log) {
-        this.log = log;
+    /**
+     * Refresh the cached enabled levels of all loggers, e.g. after the levels are changed by the code.
+     */
+    public static void refreshLevels() {
+        ++levelGeneration;
+    }
+
+    /**
+     * Refresh the cached enabled levels periodically, e.g. when log4j reloads the configuration file. It is 1 second
+     * by default for log4j and commons-logging.
+     * 
+     * @param millis
+     *            the interval in milliseconds, 0 to stop
+     */
+    public static synchronized void setLevelRefreshInterval(long millis) {
+        levelRefreshConfigured = true;
+        startLevelRefresh(millis);
+    }
+
+    // the backend has no change listener, e.g. log4j configureAndWatch(), refresh unless the user has configured it
+    private static synchronized void startDefaultLevelRefresh() {
+        if (!levelRefreshConfigured) {
+            startLevelRefresh(DEFAULT_LEVEL_REFRESH_INTERVAL);
+        }
+    }
+
+    private static void startLevelRefresh(long millis) {
+        if (levelRefreshTimer != null) {
+            levelRefreshTimer.cancel();
+            levelRefreshTimer = null;
+        }
+        if (millis > 0) {
+            levelRefreshTimer = new Timer("SCLog-Level-Refresh", true);
+            levelRefreshTimer.schedule(new TimerTask() {
+                @Override
+                public void run() {
+                    refreshLevels();
+                }
+            }, millis, millis);
+        }
     }
 
     public static SCLog getLogger(Class<?> clazz) {
         return getLogger(clazz.getName());
     }
 
-    @SuppressWarnings({ "rawtypes", "unchecked" })
+    /**
+     * Get the logger of the name. The loggers are cached, so it is cheap to call it in the constructor of the objects
+     * created frequently.
+     * 
+     * @param name
+     *            the name of the logger
+     * @return the logger
+     */
     public static SCLog getLogger(String name) {
-        String preferredLog = System.getProperty("org.ellab.sclog.log");
+        SCLog logger = loggers.get(name);
+        if (logger == null) {
+            logger = createLogger(name);
+            SCLog prev = loggers.putIfAbsent(name, logger);
+            if (prev != null) {
+                logger = prev;
+            }
+        }
+        return logger;
+    }
 
-        if ("log4j".equals(logType) || "log4j".equals(preferredLog) || preferredLog == null
-                || preferredLog.trim().length() == 0) {
+    private static SCLog createLogger(String name) {
+        if (Backend.createMethod != null) {
             try {
-                if (logType == null) {
-                    final String[] level = { "fatal", "error", "warn", "info", "debug" };
-                    logClass = Class.forName("org.apache.log4j.Category");
-                    createMethod = logClass.getMethod("getInstance", String.class);
-                    for (int i = 0; i < level.length; i++) {
-                        logMethod[i] = new Method[4];
-                        logMethod[i][1] = logClass.getMethod(level[i], Object.class);
-                        logMethod[i][3] = logClass.getMethod(level[i], Object.class, Throwable.class);
-                    }
-                    logType = "log4j";
+                return new SCLog(Backend.createMethod.invoke(name));
+            }
+            catch (Throwable ex) {
+                ex.printStackTrace();
+            }
+        }
+        return new SCLog(null);
+    }
+
+    /**
+     * The logging framework, detected and bound once when the first logger is created. The class initialization is
+     * thread-safe and publishes the final fields to all threads. The handles are not bound to any logger, the logger
+     * is passed as the first argument, so each call site invokes a constant handle.
+     */
+    private static final class Backend {
+        private static final String logType;
+        // xxx(Object), of LOGGER_LOG_TYPE
+        private static final MethodHandle FATAL;
+        private static final MethodHandle ERROR;
+        private static final MethodHandle WARN;
+        private static final MethodHandle INFO;
+        private static final MethodHandle DEBUG;
+        // xxx(Object, Throwable), of LOGGER_LOG_THROWABLE_TYPE, null if not supported
+        private static final MethodHandle FATAL_THROWABLE;
+        private static final MethodHandle ERROR_THROWABLE;
+        private static final MethodHandle WARN_THROWABLE;
+        private static final MethodHandle INFO_THROWABLE;
+        private static final MethodHandle DEBUG_THROWABLE;
+        // isXxxEnabled(), of LOGGER_ENABLED_TYPE
+        private static final MethodHandle FATAL_ENABLED;
+        private static final MethodHandle ERROR_ENABLED;
+        private static final MethodHandle WARN_ENABLED;
+        private static final MethodHandle INFO_ENABLED;
+        private static final MethodHandle DEBUG_ENABLED;
+        private static final MethodHandle createMethod;
+
+        static {
+            String preferredLog = System.getProperty("org.ellab.sclog.log");
+            boolean any = preferredLog == null || preferredLog.trim().length() == 0;
+            String type = null;
+            MethodHandle create = null;
+            MethodHandle[][] log = null;
+            MethodHandle[] enabled = null;
+
+            if (any || "log4j".equals(preferredLog)) {
+                try {
+                    log = new MethodHandle[5][2];
+                    enabled = new MethodHandle[5];
+                    create = bindLog4j(log, enabled);
+                    type = "log4j";
+                }
+                catch (Throwable ex) {
+                    ;
                 }
-                return new SCLog(createMethod.invoke(null, name));
             }
-            catch (Exception ex) {
-                ;
+            if (type == null && (any || "commons".equals(preferredLog) || "commons-logging".equals(preferredLog))) {
+                try {
+                    log = new MethodHandle[5][2];
+                    enabled = new MethodHandle[5];
+                    create = bindCommons(log, enabled);
+                    type = "commons-logging";
+                }
+                catch (Throwable ex) {
+                    ;
+                }
+            }
+            if (type == null && (any || "java".equals(preferredLog))) {
+                try {
+                    log = new MethodHandle[5][2];
+                    enabled = new MethodHandle[5];
+                    create = bindJava(log, enabled);
+                    type = "java";
+                }
+                catch (Throwable ex) {
+                    ex.printStackTrace();
+                }
             }
+
+            if (type == null) {
+                create = null;
+                log = new MethodHandle[5][2];
+                enabled = new MethodHandle[5];
+            }
+            logType = type;
+            createMethod = create;
+            if ("log4j".equals(type) || "commons-logging".equals(type)) {
+                startDefaultLevelRefresh();
+            }
+            FATAL = asType(log[0][0], LOGGER_LOG_TYPE);
+            ERROR = asType(log[1][0], LOGGER_LOG_TYPE);
+            WARN = asType(log[2][0], LOGGER_LOG_TYPE);
+            INFO = asType(log[3][0], LOGGER_LOG_TYPE);
+            DEBUG = asType(log[4][0], LOGGER_LOG_TYPE);
+            FATAL_THROWABLE = asType(log[0][1], LOGGER_LOG_THROWABLE_TYPE);
+            ERROR_THROWABLE = asType(log[1][1], LOGGER_LOG_THROWABLE_TYPE);
+            WARN_THROWABLE = asType(log[2][1], LOGGER_LOG_THROWABLE_TYPE);
+            INFO_THROWABLE = asType(log[3][1], LOGGER_LOG_THROWABLE_TYPE);
+            DEBUG_THROWABLE = asType(log[4][1], LOGGER_LOG_THROWABLE_TYPE);
+            FATAL_ENABLED = asType(enabled[0], LOGGER_ENABLED_TYPE);
+            ERROR_ENABLED = asType(enabled[1], LOGGER_ENABLED_TYPE);
+            WARN_ENABLED = asType(enabled[2], LOGGER_ENABLED_TYPE);
+            INFO_ENABLED = asType(enabled[3], LOGGER_ENABLED_TYPE);
+            DEBUG_ENABLED = asType(enabled[4], LOGGER_ENABLED_TYPE);
+        }
+
+        private static MethodHandle asType(MethodHandle h, MethodType type) {
+            return h != null ? h.asType(type) : null;
+        }
+
+        private static MethodHandle bindLog4j(MethodHandle[][] log, MethodHandle[] enabled) throws Exception {
+            final String[] level = { "fatal", "error", "warn", "info", "debug" };
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            Class<?> logClass = Class.forName("org.apache.log4j.Category");
+            Class<?> levelClass = Class.forName("org.apache.log4j.Level");
+            MethodHandle isEnabledFor = lookup.findVirtual(logClass, "isEnabledFor",
+                    MethodType.methodType(boolean.class, Class.forName("org.apache.log4j.Priority")));
+            for (int i = 0; i < level.length; i++) {
+                log[i][0] = lookup.findVirtual(logClass, level[i], LOG_TYPE);
+                log[i][1] = lookup.findVirtual(logClass, level[i], LOG_THROWABLE_TYPE);
+                enabled[i] = MethodHandles.insertArguments(isEnabledFor, 1,
+                        levelClass.getField(level[i].toUpperCase()).get(null));
+            }
+            return lookup.findStatic(logClass, "getInstance", MethodType.methodType(logClass, String.class));
+        }
+
+        private static MethodHandle bindCommons(MethodHandle[][] log, MethodHandle[] enabled) throws Exception {
+            final String[] level = { "fatal", "error", "warn", "info", "debug" };
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            Class<?> logClass = Class.forName("org.apache.commons.logging.LogFactory");
+            Class<?> clazz2 = Class.forName("org.apache.commons.logging.Log");
+            for (int i = 0; i < level.length; i++) {
+                log[i][0] = lookup.findVirtual(clazz2, level[i], LOG_TYPE);
+                log[i][1] = lookup.findVirtual(clazz2, level[i], LOG_THROWABLE_TYPE);
+                enabled[i] = lookup.findVirtual(clazz2,
+                        "is" + Character.toUpperCase(level[i].charAt(0)) + level[i].substring(1) + "Enabled",
+                        MethodType.methodType(boolean.class));
+            }
+            return lookup.findStatic(logClass, "getLog", MethodType.methodType(clazz2, String.class));
         }
-        if ("commons".equals(logType) || "commons".equals(preferredLog) || "commons-logging".equals(preferredLog)
-                || preferredLog == null || preferredLog.trim().length() == 0) {
+
+        private static MethodHandle bindJava(MethodHandle[][] log, MethodHandle[] enabled) throws Exception {
+            final String[] level = { "severe", "severe", "warning", "info", "fine" };
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            Class<?> logClass = Class.forName("java.util.logging.Logger");
+            // log(String), convert the Object to String first
+            MethodHandle toString = lookup.findStatic(SCLog.class, "toString",
+                    MethodType.methodType(String.class, Object.class));
+            Class<?> levelClass = Class.forName("java.util.logging.Level");
+            MethodHandle isLoggable = lookup.findVirtual(logClass, "isLoggable",
+                    MethodType.methodType(boolean.class, levelClass));
+            for (int i = 0; i < level.length; i++) {
+                log[i][0] = MethodHandles.filterArguments(
+                        lookup.findVirtual(logClass, level[i], MethodType.methodType(void.class, String.class)), 1,
+                        toString);
+                enabled[i] = MethodHandles.insertArguments(isLoggable, 1,
+                        levelClass.getField(level[i].toUpperCase()).get(null));
+            }
             try {
-                if (logType == null) {
-                    final String[] level = { "fatal", "error", "warn", "info", "debug" };
-                    logClass = Class.forName("org.apache.commons.logging.LogFactory");
-                    createMethod = logClass.getMethod("getLog", String.class);
-                    Class clazz2 = Class.forName("org.apache.commons.logging.Log");
-                    for (int i = 0; i < level.length; i++) {
-                        logMethod[i] = new Method[4];
-                        logMethod[i][1] = clazz2.getMethod(level[i], Object.class);
-                        logMethod[i][3] = clazz2.getMethod(level[i], Object.class, Throwable.class);
+                LogManager.getLogManager().addConfigurationListener(new Runnable() {
+                    @Override
+                    public void run() {
+                        refreshLevels();
                     }
-                    logType = "commons-logging";
-                }
-                return new SCLog(createMethod.invoke(null, name));
+                });
             }
-            catch (Exception ex) {
+            catch (LinkageError ex) {
+                // before Java 9
                 ;
             }
+            return lookup.findStatic(logClass, "getLogger", MethodType.methodType(logClass, String.class));
         }
-        if ("java".equals(logType) || "java".equals(preferredLog) || preferredLog == null
-                || preferredLog.trim().length() == 0) {
-            try {
-                if (logType == null) {
-                    final String[] level = { "severe", "severe", "warning", "info", "fine" };
-                    logClass = Class.forName("java.util.logging.Logger");
-                    createMethod = logClass.getMethod("getLogger", String.class);
-                    for (int i = 0; i < level.length; i++) {
-                        logMethod[i] = new Method[4];
-                        logMethod[i][0] = logClass.getMethod(level[i], String.class);
-                    }
-                    logType = "java";
+    }
+
+    private static String toString(Object obj) {
+        return obj != null ? obj.toString() : null;
+    }
+
+    private boolean isEnabled(int level) {
+        if (generation != levelGeneration) {
+            refreshEnabled();
+        }
+        return (enabledFlags & (1 << level)) != 0;
+    }
+
+    private void refreshEnabled() {
+        int gen = levelGeneration;
+        int flags = 0;
+        for (int i = 0; i < LEVEL.length; i++) {
+            boolean enabled = true;
+            if (logger != null) {
+                try {
+                    enabled = invokeEnabled(i);
+                }
+                catch (Throwable ex) {
+                    ;
                 }
-                return new SCLog(createMethod.invoke(null, name));
             }
-            catch (Exception ex) {
-                ex.printStackTrace();
+            if (enabled) {
+                flags |= 1 << i;
             }
         }
-        return new SCLog(null);
+        // flags first, the readers check the generation
+        enabledFlags = flags;
+        generation = gen;
+    }
+
+    public boolean isFatalEnabled() {
+        return isEnabled(0);
+    }
+
+    public boolean isErrorEnabled() {
+        return isEnabled(1);
+    }
+
+    public boolean isWarnEnabled() {
+        return isEnabled(2);
+    }
+
+    public boolean isInfoEnabled() {
+        return isEnabled(3);
+    }
+
+    public boolean isDebugEnabled() {
+        return isEnabled(4);
     }
 
     private void log(int level, Object obj) {
-        try {
-            if (logType != null && log != null && logMethod != null) {
-                if (logMethod[level][1] != null) {
-                    logMethod[level][1].invoke(log, obj);
+        if (!isEnabled(level)) {
+            return;
+        }
+
+        AsyncWriter w = asyncWriter;
+        if (w == null || !w.offer(this, level, obj, null, false)) {
+            write(level, obj, false, null, System.currentTimeMillis(), null);
+        }
+    }
+
+    private void log(int level, Object obj, Throwable throwable) {
+        if (!isEnabled(level)) {
+            return;
+        }
+
+        AsyncWriter w = asyncWriter;
+        if (w == null || !w.offer(this, level, obj, throwable, true)) {
+            write(level, obj, true, throwable, System.currentTimeMillis(), null);
+        }
+    }
+
+    /**
+     * Write to the logging framework, or to <code>System.out</code> if there is no logging framework.
+     * 
+     * @param withThrowable
+     *            called by <code>xxx(Object, Throwable)</code>
+     * @param time
+     *            the time of the log call
+     * @param out
+     *            append the <code>System.out</code> output to it instead of print, for the async writer to print in
+     *            batch, can be <code>null</code>
+     */
+    private void write(int level, Object obj, boolean withThrowable, Throwable throwable, long time,
+            StringBuilder out) {
+        if (logger != null && !withThrowable) {
+            try {
+                invokeLog(level, obj);
+                return;
+            }
+            catch (Throwable ex) {
+                ;
+            }
+        }
+        else if (logger != null) {
+            if (Backend.FATAL_THROWABLE != null) {
+                try {
+                    invokeLog(level, obj, throwable);
+                    return;
                 }
-                else {
-                    logMethod[level][0].invoke(log, obj != null ? obj.toString() : obj);
+                catch (Throwable ex) {
+                    ;
                 }
+            }
+            else {
+                write(level,
+                        (obj != null ? obj.toString() : "") + (throwable != null
+                                ? (" (" + throwable.getClass().getName() + " " + throwable.getMessage() + ")")
+                                : ""),
+                        false, null, time, out);
                 return;
             }
         }
-        catch (Exception ex) {
-            ;
+
+        StringBuilder sb = out;
+        if (sb == null) {
+            sb = lineBuffer.get();
+            sb.setLength(0);
+        }
+        appendTimestamp(sb, time).append(" [").append(LEVEL[level]).append("] ").append(obj)
+                .append(System.lineSeparator());
+        if (throwable != null) {
+            StringWriter sw = new StringWriter();
+            throwable.printStackTrace(new PrintWriter(sw));
+            sb.append(sw);
+        }
+        if (out == null) {
+            System.out.print(sb);
+            if (sb.capacity() > 8192) {
+                // don't keep the buffer of a huge stack trace
+                lineBuffer.remove();
+            }
         }
+    }
 
-        System.out.println(datefmt.format(new Date(System.currentTimeMillis())) + " [" + LEVEL[level] + "] " + obj);
+    // one call site per constant handle, so the JIT can inline the logging framework
+    private void invokeLog(int level, Object obj) throws Throwable {
+        switch (level) {
+        case 0:
+            Backend.FATAL.invokeExact(logger, obj);
+            break;
+        case 1:
+            Backend.ERROR.invokeExact(logger, obj);
+            break;
+        case 2:
+            Backend.WARN.invokeExact(logger, obj);
+            break;
+        case 3:
+            Backend.INFO.invokeExact(logger, obj);
+            break;
+        default:
+            Backend.DEBUG.invokeExact(logger, obj);
+            break;
+        }
     }
 
-    private void log(int level, Object obj, Throwable throwable) {
-        try {
-            if (logType != null && log != null && logMethod != null) {
-                if (logMethod[level][3] != null) {
-                    logMethod[level][3].invoke(log, obj, throwable);
+    private void invokeLog(int level, Object obj, Throwable throwable) throws Throwable {
+        switch (level) {
+        case 0:
+            Backend.FATAL_THROWABLE.invokeExact(logger, obj, throwable);
+            break;
+        case 1:
+            Backend.ERROR_THROWABLE.invokeExact(logger, obj, throwable);
+            break;
+        case 2:
+            Backend.WARN_THROWABLE.invokeExact(logger, obj, throwable);
+            break;
+        case 3:
+            Backend.INFO_THROWABLE.invokeExact(logger, obj, throwable);
+            break;
+        default:
+            Backend.DEBUG_THROWABLE.invokeExact(logger, obj, throwable);
+            break;
+        }
+    }
+
+    private boolean invokeEnabled(int level) throws Throwable {
+        switch (level) {
+        case 0:
+            return (boolean) Backend.FATAL_ENABLED.invokeExact(logger);
+        case 1:
+            return (boolean) Backend.ERROR_ENABLED.invokeExact(logger);
+        case 2:
+            return (boolean) Backend.WARN_ENABLED.invokeExact(logger);
+        case 3:
+            return (boolean) Backend.INFO_ENABLED.invokeExact(logger);
+        default:
+            return (boolean) Backend.DEBUG_ENABLED.invokeExact(logger);
+        }
+    }
+
+    private static class Second {
+        private final long second;
+        private final String text;
+
+        private Second(long second, String text) {
+            this.second = second;
+            this.text = text;
+        }
+    }
+
+    /**
+     * Append the time in <code>yyyy-MM-dd HH:mm:ss.SSS</code>. The text up to the second is formatted once per second
+     * and shared by all threads, so it is thread-safe and does not allocate for most calls.
+     */
+    private static StringBuilder appendTimestamp(StringBuilder sb, long time) {
+        long sec = Math.floorDiv(time, 1000);
+        Second s = second;
+        if (s.second != sec) {
+            // SimpleDateFormat is not thread-safe, use a new one
+            s = new Second(sec, new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.").format(new Date(sec * 1000)));
+            second = s;
+        }
+
+        int millis = (int) (time - sec * 1000);
+        sb.append(s.text);
+        if (millis < 100) {
+            sb.append('0');
+        }
+        if (millis < 10) {
+            sb.append('0');
+        }
+        return sb.append(millis);
+    }
+
+    /**
+     * What to do when the buffer of the async mode is full.
+     */
+    public enum Overflow {
+        /** wait for the writer thread */
+        BLOCK,
+        /** drop the new log */
+        DROP,
+        /** drop the new debug log, wait for the writer thread for other levels */
+        DROP_DEBUG
+    }
+
+    /**
+     * Log asynchronously. The log calls put the logs into a preallocated lock-free ring buffer and return, a writer
+     * thread takes them in batch and writes them to the logging framework or <code>System.out</code>. The remaining
+     * logs are written when the JVM shuts down.
+     * <p>
+     * The logging framework sees the writer thread as the caller, and its own timestamp is the time of writing.
+     * </p>
+     * 
+     * @param capacity
+     *            the size of the buffer, rounded up to power of 2
+     * @param overflow
+     *            what to do when the buffer is full
+     */
+    public static synchronized void startAsync(int capacity, Overflow overflow) {
+        stopAsync();
+        AsyncWriter w = new AsyncWriter(capacity, overflow);
+        w.start();
+        asyncWriter = w;
+    }
+
+    /**
+     * Write all remaining logs and log synchronously again.
+     */
+    public static synchronized void stopAsync() {
+        AsyncWriter w = asyncWriter;
+        if (w != null) {
+            asyncWriter = null;
+            w.shutdown();
+        }
+    }
+
+    /**
+     * @return the number of logs dropped by the current async mode
+     */
+    public static long getDroppedCount() {
+        AsyncWriter w = asyncWriter;
+        return w != null ? w.dropped.get() : 0;
+    }
+
+    private static class LogEvent {
+        // sequence + 1 when the event is published
+        private volatile long published;
+        private SCLog logger;
+        private int level;
+        private Object obj;
+        private boolean withThrowable;
+        private Throwable throwable;
+        private long time;
+    }
+
+    /**
+     * Multi-producer single-consumer bounded ring buffer. A producer claims a sequence by CAS on the tail, fills the
+     * slot and publishes it; the writer thread consumes the slots in sequence and then moves the head. Shutdown sets
+     * the closed bit in the tail, so the later logs are written by the caller and the writer stops exactly at the last
+     * claimed sequence.
+     */
+    private static class AsyncWriter extends Thread {
+        private static final int BATCH = 256;
+        // set in the tail by shutdown(), no more sequence can be claimed after it
+        private static final long CLOSED = Long.MIN_VALUE;
+
+        private final LogEvent[] slots;
+        private final int mask;
+        private final Overflow overflow;
+        private final AtomicLong tail = new AtomicLong();
+        private final AtomicLong dropped = new AtomicLong();
+        private volatile long head;
+        private volatile boolean waiting;
+        private final StringBuilder out = new StringBuilder();
+        private Thread shutdownHook;
+
+        AsyncWriter(int capacity, Overflow overflow) {
+            super("SCLog-Writer");
+            setDaemon(true);
+            int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+            slots = new LogEvent[size];
+            for (int i = 0; i < size; i++) {
+                slots[i] = new LogEvent();
+            }
+            mask = size - 1;
+            this.overflow = overflow;
+        }
+
+        @Override
+        public synchronized void start() {
+            super.start();
+            shutdownHook = new Thread("SCLog-Shutdown") {
+                @Override
+                public void run() {
+                    AsyncWriter.this.shutdown();
+                }
+            };
+            Runtime.getRuntime().addShutdownHook(shutdownHook);
+        }
+
+        /**
+         * @return <code>false</code> if the log is not queued and should be written by the caller
+         */
+        boolean offer(SCLog logger, int level, Object obj, Throwable throwable, boolean withThrowable) {
+            // logged by the writer itself, e.g. by toString() or the backend, it may wait for itself if queued
+            if (Thread.currentThread() == this) {
+                return false;
+            }
+
+            long seq;
+            while (true) {
+                seq = tail.get();
+                if ((seq & CLOSED) != 0) {
+                    return false;
                 }
-                else if (logMethod[level][2] != null) {
-                    logMethod[level][2].invoke(log, obj != null ? obj.toString() : obj, throwable);
+                if (seq - head >= slots.length) {
+                    if (overflow == Overflow.DROP || (overflow == Overflow.DROP_DEBUG && level == 4)) {
+                        dropped.incrementAndGet();
+                        return true;
+                    }
+                    // BLOCK, wait for the writer
+                    wakeup();
+                    LockSupport.parkNanos(100000);
                 }
-                else {
-                    log(level,
-                            (obj != null ? obj.toString() : "")
-                                    + (throwable != null ? (" (" + throwable.getClass().getName() + " "
-                                            + throwable.getMessage() + ")") : ""));
+                else if (tail.compareAndSet(seq, seq + 1)) {
+                    break;
+                }
+            }
+
+            LogEvent e = slots[(int) seq & mask];
+            e.logger = logger;
+            e.level = level;
+            e.obj = obj;
+            e.throwable = throwable;
+            e.withThrowable = withThrowable;
+            e.time = System.currentTimeMillis();
+            e.published = seq + 1;
+            if (waiting) {
+                wakeup();
+            }
+            return true;
+        }
+
+        private void wakeup() {
+            LockSupport.unpark(this);
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                int n = drain();
+                if (n == 0) {
+                    long t = tail.get();
+                    // closed, all the claimed sequences are written
+                    if ((t & CLOSED) != 0 && head == (t & ~CLOSED)) {
+                        break;
+                    }
+                    waiting = true;
+                    // check again after setting the flag, the producer may not see it
+                    if (slots[(int) head & mask].published != head + 1) {
+                        LockSupport.parkNanos((t & CLOSED) != 0 ? 100000 : 10000000);
+                    }
+                    waiting = false;
                 }
-                return;
             }
         }
-        catch (Exception ex) {
-            ;
+
+        private int drain() {
+            int n = 0;
+            long h = head;
+            while (n < BATCH) {
+                LogEvent e = slots[(int) h & mask];
+                if (e.published != h + 1) {
+                    break;
+                }
+                try {
+                    e.logger.write(e.level, e.obj, e.withThrowable, e.throwable, e.time, out);
+                }
+                catch (RuntimeException ex) {
+                    ex.printStackTrace();
+                }
+                e.logger = null;
+                e.obj = null;
+                e.throwable = null;
+                head = ++h;
+                ++n;
+            }
+            if (out.length() > 0) {
+                System.out.print(out);
+                System.out.flush();
+                out.setLength(0);
+            }
+            return n;
         }
 
-        System.out.println(datefmt.format(new Date(System.currentTimeMillis())) + " [" + LEVEL[level] + "] " + obj);
-        throwable.printStackTrace(System.out);
+        void shutdown() {
+            long t;
+            do {
+                t = tail.get();
+            } while ((t & CLOSED) == 0 && !tail.compareAndSet(t, t | CLOSED));
+            wakeup();
+            if (Thread.currentThread() != this) {
+                try {
+                    join();
+                }
+                catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            Thread hook = shutdownHook;
+            if (hook != null && Thread.currentThread() != hook) {
+                try {
+                    Runtime.getRuntime().removeShutdownHook(hook);
+                }
+                catch (IllegalStateException ex) {
+                    // shutting down
+                    ;
+                }
+            }
+        }
+    }
+
+    private void log(int level, Supplier<?> supplier) {
+        if (isEnabled(level)) {
+            // xxx(null) binds to the Supplier overload, log it as a null message like xxx(Object)
+            log(level, supplier != null ? supplier.get() : null);
+        }
+    }
+
+    private void log(int level, String format, Object[] args) {
+        if (!isEnabled(level)) {
+            return;
+        }
+
+        StringBuilder sb = new StringBuilder(format.length() + 16 * args.length);
+        int argIndex = 0;
+        int start = 0;
+        int pos;
+        while (argIndex < args.length && (pos = format.indexOf("{}", start)) >= 0) {
+            sb.append(format, start, pos).append(args[argIndex++]);
+            start = pos + 2;
+        }
+        sb.append(format, start, format.length());
+
+        // the last argument without placeholder is the throwable
+        if (argIndex < args.length && args[args.length - 1] instanceof Throwable) {
+            log(level, sb.toString(), (Throwable) args[args.length - 1]);
+        }
+        else {
+            log(level, sb.toString());
+        }
     }
 
     public void fatal(Object obj) {
@@ -175,6 +832,14 @@ public class SCLog {
         log(0, obj, throwable);
     }
 
+    public void fatal(Supplier<?> supplier) {
+        log(0, supplier);
+    }
+
+    public void fatal(String format, Object... args) {
+        log(0, format, args);
+    }
+
     public void error(Object obj) {
         log(1, obj);
     }
@@ -183,6 +848,14 @@ public class SCLog {
         log(1, obj, throwable);
     }
 
+    public void error(Supplier<?> supplier) {
+        log(1, supplier);
+    }
+
+    public void error(String format, Object... args) {
+        log(1, format, args);
+    }
+
     public void warn(Object obj) {
         log(2, obj);
     }
@@ -191,6 +864,14 @@ public class SCLog {
         log(2, obj, throwable);
     }
 
+    public void warn(Supplier<?> supplier) {
+        log(2, supplier);
+    }
+
+    public void warn(String format, Object... args) {
+        log(2, format, args);
+    }
+
     public void info(Object obj) {
         log(3, obj);
     }
@@ -199,6 +880,14 @@ public class SCLog {
         log(3, obj, throwable);
     }
 
+    public void info(Supplier<?> supplier) {
+        log(3, supplier);
+    }
+
+    public void info(String format, Object... args) {
+        log(3, format, args);
+    }
+
     public void debug(Object obj) {
         log(4, obj);
     }
@@ -207,17 +896,49 @@ public class SCLog {
         log(4, obj, throwable);
     }
 
+    public void debug(Supplier<?> supplier) {
+        log(4, supplier);
+    }
+
+    public void debug(String format, Object... args) {
+        log(4, format, args);
+    }
+
     public static void main(String[] args) throws Exception {
         SCLog log = SCLog.getLogger(SCLog.class);
-        log.fatal(logType + " fatal");
-        log.fatal(logType + " fatal", new Exception("fatal exception"));
-        log.error(logType + " error");
-        log.error(logType + " error", new Exception("error exception"));
-        log.warn(logType + " warn");
-        log.warn(logType + " warn", new Exception("warn exception"));
-        log.info(logType + " info");
-        log.info(logType + " info", new Exception("info exception"));
-        log.debug(logType + " debug");
-        log.debug(logType + " debug", new Exception("debug exception"));
+        log.fatal(Backend.logType + " fatal");
+        log.fatal(Backend.logType + " fatal", new Exception("fatal exception"));
+        log.error(Backend.logType + " error");
+        log.error(Backend.logType + " error", new Exception("error exception"));
+        log.warn(Backend.logType + " warn");
+        log.warn(Backend.logType + " warn", new Exception("warn exception"));
+        log.info(Backend.logType + " info");
+        log.info(Backend.logType + " info", new Exception("info exception"));
+        log.debug(Backend.logType + " debug");
+        log.debug(Backend.logType + " debug", new Exception("debug exception"));
+
+        log.info("{} {} parameterized", Backend.logType, "info");
+        log.info("{} info parameterized with exception", Backend.logType, new Exception("info exception"));
+        log.info(new Supplier<String>() {
+            @Override
+            public String get() {
+                return Backend.logType + " info supplier";
+            }
+        });
+        long startTime = System.nanoTime();
+        for (int i = 0; i < 10000000; i++) {
+            log.debug("disabled debug {}", i);
+        }
+        log.info("debug enabled: " + log.isDebugEnabled() + ", 10M debug() in "
+                + (System.nanoTime() - startTime) / 1000000 + "ms");
+
+        SCLog.startAsync(1024, Overflow.BLOCK);
+        startTime = System.nanoTime();
+        for (int i = 0; i < 1000; i++) {
+            log.info("async {}", i);
+        }
+        long asyncNanos = System.nanoTime() - startTime;
+        SCLog.stopAsync();
+        log.info("1000 async info() returned in " + asyncNanos / 1000 + "us");
     }
 }
@@ -651,6 +651,130 @@ public class TextTable {
         }
     }
 
+    /**
+     * Receive the metrics of every render. Similar to {@link Logger}, it is optional and <code>TextTable</code> measures
+     * nothing when no listener is set, so it is cheap enough to leave on in production.
+     * 
+     * @see TextTable#setMetricsListener(MetricsListener)
+     */
+    public interface MetricsListener {
+        /**
+         * Called after the table is rendered.
+         * 
+         * @param table
+         *            the rendered table
+         * @param metrics
+         *            the metrics of this render
+         */
+        void rendered(TextTable table, RenderMetrics metrics);
+    }
+
+    /**
+     * The timings (in nanoseconds) of each phase of a render and the size of the output.
+     */
+    public static class RenderMetrics {
+        private long analysisNanos;
+        private long colspanNanos;
+        private long fitColumnWidthNanos;
+        private long lineNanos;
+        private long ioNanos;
+        private long totalNanos;
+        private int rows;
+        private int cells;
+        private int lines;
+        private long charsWritten;
+        private long allocatedBytes = -1;
+
+        /** Time to analyze the cell content and calculate the column width */
+        public long getAnalysisNanos() {
+            return analysisNanos;
+        }
+
+        /** Time to re-calculate the column width for colspan */
+        public long getColspanNanos() {
+            return colspanNanos;
+        }
+
+        /** Time to shrink the columns to fit the max width */
+        public long getFitColumnWidthNanos() {
+            return fitColumnWidthNanos;
+        }
+
+        /** Time to generate the lines, excluding I/O */
+        public long getLineNanos() {
+            return lineNanos;
+        }
+
+        /** Time spent on printing and flushing the <code>PrintWriter</code> */
+        public long getIoNanos() {
+            return ioNanos;
+        }
+
+        public long getTotalNanos() {
+            return totalNanos;
+        }
+
+        public int getRows() {
+            return rows;
+        }
+
+        /** Number of visible cells, i.e. excluding the cells hidden by colspan */
+        public int getCells() {
+            return cells;
+        }
+
+        public int getLines() {
+            return lines;
+        }
+
+        /**
+         * Number of characters written, including the line separators. Same as bytes written unless the
+         * <code>PrintWriter</code> encodes to a multi-byte charset.
+         */
+        public long getCharsWritten() {
+            return charsWritten;
+        }
+
+        /** Bytes allocated by the rendering thread, or -1 if the JVM does not support it */
+        public long getAllocatedBytes() {
+            return allocatedBytes;
+        }
+
+        @Override
+        public String toString() {
+            return "total=" + totalNanos / 1000 + "us, analysis=" + analysisNanos / 1000 + "us, colspan="
+                    + colspanNanos / 1000 + "us, fitColumnWidth=" + fitColumnWidthNanos / 1000 + "us, line="
+                    + lineNanos / 1000 + "us, io=" + ioNanos / 1000 + "us, rows=" + rows + ", cells=" + cells
+                    + ", lines=" + lines + ", chars=" + charsWritten + ", allocated=" + allocatedBytes;
+        }
+    }
+
+    // Read the allocated bytes of current thread if the JVM supports com.sun.management.ThreadMXBean
+    private static class AllocationCounter {
+        private static final java.lang.management.ThreadMXBean BEAN;
+        private static final boolean SUPPORTED;
+        static {
+            java.lang.management.ThreadMXBean bean = null;
+            boolean supported = false;
+            try {
+                bean = java.lang.management.ManagementFactory.getThreadMXBean();
+                supported = bean instanceof com.sun.management.ThreadMXBean
+                        && ((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported()
+                        && ((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemoryEnabled();
+            }
+            catch (Throwable ex) {
+                ;
+            }
+            BEAN = bean;
+            SUPPORTED = supported;
+        }
+
+        private static long get() {
+            return SUPPORTED ? ((com.sun.management.ThreadMXBean) BEAN).getThreadAllocatedBytes(
+                    Thread.currentThread().getId()) : -1;
+        }
+    }
+
     /**
      * Add the ability to format different type of object. For example, you can use <code>SimpleDateFormat</code> to
      * render a <code>Date</code> object.
@@ -717,6 +841,282 @@ public class TextTable {
         }
     }
 
+    /**
+     * Render a table repeatedly at the same position of an ANSI terminal, e.g. a console dashboard refreshing every
+     * second. The previous frame is kept and only the changed segment of each line is written with ANSI cursor
+     * movement, instead of redrawing the whole table.
+     * <p>
+     * Nothing else should be printed between two renders and the table should not be wider than the console (see
+     * {@link TextTable#setMaxWidth(int)}), otherwise the cursor position will be out of sync. Call {@link #reset()} to
+     * draw a full frame again.
+     * </p>
+     */
+    public static class DiffRenderer {
+        private static final String CSI = "\u001B[";
+        private static final String NEWLINE = System.getProperty("line.separator", "\n");
+
+        private final StringBuilder sb = new StringBuilder();
+        private String[] prevLines;
+        private int lastCharsWritten;
+
+        /**
+         * Forget the previous frame, the next render will draw the full table below the cursor.
+         */
+        public void reset() {
+            prevLines = null;
+        }
+
+        /**
+         * The number of characters written by the last render, including the ANSI escape sequences.
+         * 
+         * @return the number of characters
+         */
+        public int getLastCharsWritten() {
+            return lastCharsWritten;
+        }
+
+        /**
+         * Render the table and write the difference from the previous frame to <code>out</code>.
+         * 
+         * @param table
+         *            the table to render
+         * @param out
+         *            the <code>PrintWriter</code> of the ANSI terminal
+         */
+        public void render(TextTable table, PrintWriter out) {
+            String[] lines = table.renderAsString().split("\r?\n", -1);
+            // drop the empty string after the last line separator
+            if (lines.length > 0 && lines[lines.length - 1].length() == 0) {
+                lines = Arrays.copyOf(lines, lines.length - 1);
+            }
+
+            sb.setLength(0);
+            if (prevLines == null) {
+                for (String line : lines) {
+                    sb.append(line).append(NEWLINE);
+                }
+            }
+            else {
+                // the cursor is at the line below the previous frame
+                int row = prevLines.length;
+                int common = Math.min(prevLines.length, lines.length);
+                for (int i = 0; i < common; i++) {
+                    String prev = prevLines[i];
+                    String line = lines[i];
+                    if (line.equals(prev)) {
+                        continue;
+                    }
+
+                    int first = 0;
+                    int minLen = Math.min(prev.length(), line.length());
+                    while (first < minLen && prev.charAt(first) == line.charAt(first)) {
+                        ++first;
+                    }
+                    // if same length, only rewrite up to the last changed char
+                    int end = line.length();
+                    if (prev.length() == line.length()) {
+                        while (end > first && prev.charAt(end - 1) == line.charAt(end - 1)) {
+                            --end;
+                        }
+                    }
+
+                    moveCursor(row, i);
+                    row = i;
+                    sb.append(CSI).append(first + 1).append('G').append(line, first, end);
+                    if (line.length() < prev.length()) {
+                        // erase to end of line
+                        sb.append(CSI).append('K');
+                    }
+                }
+
+                if (lines.length > prevLines.length) {
+                    moveCursor(row, prevLines.length);
+                    sb.append('\r');
+                    for (int i = prevLines.length; i < lines.length; i++) {
+                        sb.append(lines[i]).append(NEWLINE);
+                    }
+                }
+                else {
+                    moveCursor(row, lines.length);
+                    sb.append('\r');
+                    if (lines.length < prevLines.length) {
+                        // erase the remaining lines of previous frame
+                        sb.append(CSI).append('J');
+                    }
+                }
+            }
+
+            prevLines = lines;
+            lastCharsWritten = sb.length();
+            out.print(sb);
+            out.flush();
+        }
+
+        private void moveCursor(int from, int to) {
+            if (to < from) {
+                sb.append(CSI).append(from - to).append('A');
+            }
+            else if (to > from) {
+                sb.append(CSI).append(to - from).append('B');
+            }
+        }
+    }
+
+    /**
+     * A live board that renders the rows of a {@link RowSource} as a table in place at a fixed frame rate, e.g. the
+     * progress of many parallel jobs. The frames are rendered by one background thread with {@link DiffRenderer}, so
+     * the threads updating the data are never blocked by the console output. The row source should return a snapshot of
+     * the data without locking the writers.
+     * <p>
+     * Nothing else should be printed to the console while the board is running.
+     * </p>
+     */
+    public static class LiveBoard {
+        /**
+         * The data of a frame.
+         */
+        public interface RowSource {
+            /**
+             * Called by the rendering thread for every frame.
+             * 
+             * @return the rows of the table, the first row is the header
+             */
+            Object[][] rows();
+        }
+
+        private final RowSource source;
+        private final PrintWriter out;
+        private final DiffRenderer renderer = new DiffRenderer();
+        private BorderStyle borderStyle = BorderStyle.BASIC;
+        private int maxWidth = -1;
+        private long frameInterval = 250;
+        private volatile boolean running;
+        private Thread thread;
+
+        public LiveBoard(RowSource source) {
+            this(source, new PrintWriter(System.out));
+        }
+
+        public LiveBoard(RowSource source, PrintWriter out) {
+            this.source = source;
+            this.out = out;
+        }
+
+        public LiveBoard setFrameRate(double framesPerSecond) {
+            frameInterval = Math.max(1, Math.round(1000 / framesPerSecond));
+
+            return this;
+        }
+
+        public LiveBoard setBorderStyle(BorderStyle borderStyle) {
+            this.borderStyle = borderStyle;
+
+            return this;
+        }
+
+        /**
+         * Set the max width of the table, default is the console width.
+         * 
+         * @param maxWidth
+         *            the max width, 0 for no limit
+         * @return this
+         */
+        public LiveBoard setMaxWidth(int maxWidth) {
+            this.maxWidth = maxWidth;
+
+            return this;
+        }
+
+        /**
+         * Render one frame in current thread.
+         */
+        public synchronized void render() {
+            Object[][] rows = source.rows();
+            if (rows == null || rows.length == 0) {
+                return;
+            }
+
+            int width = maxWidth;
+            if (width < 0) {
+                // the last column of the console will wrap the cursor to the next line
+                width = Math.max(ConsoleWidth.get() - 1, 0);
+            }
+            renderer.render(new TextTable(rows).setBorderStyle(borderStyle).setMaxWidth(width), out);
+        }
+
+        /**
+         * Start the daemon thread rendering the frames.
+         * 
+         * @return this
+         */
+        public synchronized LiveBoard start() {
+            if (thread != null) {
+                return this;
+            }
+
+            running = true;
+            thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    long next = System.nanoTime();
+                    while (running) {
+                        try {
+                            render();
+                        }
+                        catch (RuntimeException ex) {
+                            ex.printStackTrace();
+                        }
+
+                        // fixed rate, skip the frames if render is slower than the frame rate
+                        next += frameInterval * 1000000;
+                        long sleep = next - System.nanoTime();
+                        if (sleep < 0) {
+                            next = System.nanoTime();
+                        }
+                        else {
+                            try {
+                                Thread.sleep(sleep / 1000000, (int) (sleep % 1000000));
+                            }
+                            catch (InterruptedException ex) {
+                                break;
+                            }
+                        }
+                    }
+                }
+            }, "TextTable-LiveBoard");
+            thread.setDaemon(true);
+            thread.start();
+
+            return this;
+        }
+
+        /**
+         * Stop the rendering thread and render the final frame.
+         * 
+         * @return this
+         */
+        public LiveBoard stop() {
+            Thread t;
+            synchronized (this) {
+                t = thread;
+                thread = null;
+                running = false;
+            }
+            if (t != null) {
+                t.interrupt();
+                try {
+                    t.join();
+                }
+                catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+                render();
+            }
+
+            return this;
+        }
+    }
+
     private static class Utils {
         private static String repeatToWidth(final String s, final int width) {
             return repeat(s, (width / s.length()) + 1).substring(0, width);
@@ -808,6 +1208,8 @@ public class TextTable {
     }
 
     private static final SafeLogger log = new SafeLogger();
+    private static volatile MetricsListener metricsListener;
+    private static final int LINE_SEPARATOR_LENGTH = System.getProperty("line.separator", "\n").length();
 
     // style related
     private CellStyle defaultCellStyle = new CellStyle();
@@ -844,6 +1246,18 @@ public class TextTable {
         return logger;
     }
 
+    /**
+     * Set the listener to receive the metrics of every render, or <code>null</code> to disable.
+     * 
+     * @param listener
+     * @return the input listener
+     */
+    public static MetricsListener setMetricsListener(MetricsListener listener) {
+        TextTable.metricsListener = listener;
+
+        return listener;
+    }
+
     public TextTable(Object[][] inputData) {
         data = Arrays.asList(inputData);
         this.colCount = data.get(0).length;
@@ -1313,11 +1727,11 @@ public class TextTable {
      * @return the rendered string
      */
     public String renderAsString() {
-        PrintWriter writer = new PrintWriter(new StringWriter());
+        StringWriter sw = new StringWriter();
+        PrintWriter writer = new PrintWriter(sw);
         render(writer);
-        String s = writer.toString();
         writer.close();
-        return s;
+        return sw.toString();
     }
 
     /**
@@ -1337,6 +1751,13 @@ public class TextTable {
         // alias
         final BorderStyle b = border;
 
+        // metrics is null if no listener, nothing will be measured
+        final MetricsListener listener = metricsListener;
+        final RenderMetrics metrics = listener != null ? new RenderMetrics() : null;
+        final long allocatedBefore = metrics != null ? AllocationCounter.get() : 0;
+        final long renderStart = metrics != null ? System.nanoTime() : 0;
+        long phaseStart = renderStart;
+
         StringBuilder sb = new StringBuilder();
 
         Map<XY, XY> colspanTextWidth = new HashMap<XY, XY>();
@@ -1365,6 +1786,12 @@ public class TextTable {
             }
         }
 
+        if (metrics != null) {
+            long now = System.nanoTime();
+            metrics.analysisNanos = now - phaseStart;
+            phaseStart = now;
+        }
+
         // re-calc column width for colspan
         if (colspanTextWidth.size() > 0) {
             for (int i = 0; i < data.size(); i++) {
@@ -1387,8 +1814,20 @@ public class TextTable {
             }
         }
 
+        if (metrics != null) {
+            long now = System.nanoTime();
+            metrics.colspanNanos = now - phaseStart;
+            phaseStart = now;
+        }
+
         fitColumnWidth();
 
+        if (metrics != null) {
+            long now = System.nanoTime();
+            metrics.fitColumnWidthNanos = now - phaseStart;
+            phaseStart = now;
+        }
+
         String[] tline = new String[colCount];
         String[] mline = new String[colCount];
         String[] hline = new String[colCount];
@@ -1403,9 +1842,9 @@ public class TextTable {
         // top line
         if ((borderFill & BorderStyle.TOP) > 0) {
             drawHLine(sb, b.tl, tline, b.tc, b.tr, -1, LineType.TOP);
-            out.println(sb.toString());
+            println(out, sb, metrics);
             sb.setLength(0);
-            out.flush();
+            flush(out, metrics);
         }
 
         CellStyle[] cachedCellStyle = new CellStyle[colCount];
@@ -1481,9 +1920,9 @@ public class TextTable {
                 }
 
                 drawHLine(sb, b.l, lineContent, b.c, b.r, i, i < headerRow ? LineType.HEADER : LineType.CONTENT);
-                out.println(sb.toString());
+                println(out, sb, metrics);
                 sb.setLength(0);
-                out.flush();
+                flush(out, metrics);
             } while (multiRow);
 
             // middle line
@@ -1491,16 +1930,16 @@ public class TextTable {
                 if (((borderFill & BorderStyle.HEADER) > 0) && i + 1 == headerRow) {
                     // header line
                     drawHLine(sb, b.hl, hline, b.hc, b.hr, i, LineType.HEADER_BOTTOM);
-                    out.println(sb.toString());
+                    println(out, sb, metrics);
                 }
                 else if ((borderFill & BorderStyle.INNER_H) > 0) {
                     // middle line
                     drawHLine(sb, b.ml, mline, b.mc, b.mr, i, LineType.CONTENT_BOTTOM);
-                    out.println(sb.toString());
+                    println(out, sb, metrics);
                 }
 
                 sb.setLength(0);
-                out.flush();
+                flush(out, metrics);
             }
         }
 
@@ -1509,11 +1948,130 @@ public class TextTable {
             drawHLine(sb, b.bl, bline, b.bc, b.br, data.size() - 1, LineType.BOTTOM);
         }
 
-        out.println(sb.toString());
-        out.flush();
+        println(out, sb, metrics);
+        flush(out, metrics);
+
+        if (metrics != null) {
+            long now = System.nanoTime();
+            metrics.lineNanos = now - phaseStart - metrics.ioNanos;
+            metrics.totalNanos = now - renderStart;
+            metrics.rows = data.size();
+            metrics.cells = data.size() * colCount - colspanInvisibleSet.size();
+            long allocatedAfter = AllocationCounter.get();
+            metrics.allocatedBytes = allocatedBefore >= 0 ? allocatedAfter - allocatedBefore : -1;
+            listener.rendered(this, metrics);
+        }
+    }
+
+    private static void println(PrintWriter out, StringBuilder sb, RenderMetrics metrics) {
+        if (metrics == null) {
+            out.println(sb.toString());
+        }
+        else {
+            long start = System.nanoTime();
+            out.println(sb.toString());
+            metrics.ioNanos += System.nanoTime() - start;
+            ++metrics.lines;
+            metrics.charsWritten += sb.length() + LINE_SEPARATOR_LENGTH;
+        }
+    }
+
+    private static void flush(PrintWriter out, RenderMetrics metrics) {
+        if (metrics == null) {
+            out.flush();
+        }
+        else {
+            long start = System.nanoTime();
+            out.flush();
+            metrics.ioNanos += System.nanoTime() - start;
+        }
     }
 
+    /**
+     * Guess the width of the console. The result is cached, see {@link ConsoleWidth}.
+     * 
+     * @return the console width, or -1 if cannot detect
+     */
     public static int guessConsoleWidth() {
+        return ConsoleWidth.get();
+    }
+
+    /**
+     * Detect the console width once and cache the result, so it is cheap to call it on every render.
+     * <p>
+     * The cheap sources are checked first, i.e. the system property <code>org.ellab.texttable.columns</code> and the
+     * environment variable <code>COLUMNS</code>. Otherwise it will run <code>tput cols</code> (or
+     * <code>mode con</code> on Windows). The cached width is refreshed by {@link #refresh()}, or automatically when
+     * it is older than the interval set by {@link #setRefreshInterval(long)}.
+     * </p>
+     */
+    public static class ConsoleWidth {
+        private static volatile int width;
+        private static volatile long detectedTime;
+        private static volatile boolean detected;
+        private static volatile long refreshInterval;
+
+        private ConsoleWidth() {
+        }
+
+        /**
+         * Get the cached console width, detect it if not yet detected or expired.
+         * 
+         * @return the console width, or -1 if cannot detect
+         */
+        public static int get() {
+            if (!detected || (refreshInterval > 0 && System.currentTimeMillis() - detectedTime >= refreshInterval)) {
+                return refresh();
+            }
+            return width;
+        }
+
+        /**
+         * Detect the console width again, e.g. after the console is resized.
+         * 
+         * @return the console width, or -1 if cannot detect
+         */
+        public static synchronized int refresh() {
+            int w = parseWidth(System.getProperty("org.ellab.texttable.columns"));
+            if (w <= 0) {
+                w = parseWidth(System.getenv("COLUMNS"));
+            }
+            if (w <= 0) {
+                w = detectConsoleWidth();
+            }
+            width = w;
+            detectedTime = System.currentTimeMillis();
+            detected = true;
+            log.debug("console width=" + w);
+
+            return w;
+        }
+
+        /**
+         * Set the interval to detect the width again on {@link #get()}.
+         * 
+         * @param refreshInterval
+         *            the interval in milliseconds, or 0 (default) to never refresh automatically
+         */
+        public static void setRefreshInterval(long refreshInterval) {
+            ConsoleWidth.refreshInterval = Math.max(refreshInterval, 0);
+        }
+
+        private static int parseWidth(String s) {
+            if (s != null) {
+                try {
+                    return Integer.parseInt(s.trim());
+                }
+                catch (NumberFormatException ex) {
+                    ;
+                }
+            }
+            return -1;
+        }
+    }
+
+    // spawn a process to detect the console width, it is slow so should be cached
+    private static int detectConsoleWidth() {
         InputStream is = null;
         Scanner s = null;
 
@@ -1778,6 +2336,62 @@ public class TextTable {
 
         TextTable.setLogger(null);
 
+        System.out.println("\nConsole Width: " + guessConsoleWidth() + " (cached: " + guessConsoleWidth() + ")");
+
+        System.out.println("\nDiffRenderer\n");
+        DiffRenderer diffRenderer = new DiffRenderer();
+        PrintWriter stdout = new PrintWriter(System.out);
+        for (int i = 0; i < 5; i++) {
+            TextTable dashboard = new TextTable(3).add("Job").add("Processed").add("Status");
+            for (int j = 0; j < 3; j++) {
+                dashboard.add("Job-" + j).add((j + 1) * i * 1000).add(i < 4 ? "running" : "done");
+            }
+            diffRenderer.render(dashboard, stdout);
+            try {
+                Thread.sleep(200);
+            }
+            catch (InterruptedException ex) {
+                ;
+            }
+        }
+        System.out.println("Last refresh written " + diffRenderer.getLastCharsWritten() + " chars");
+
+        System.out.println("\nLiveBoard\n");
+        final long[] processed = new long[3];
+        LiveBoard board = new LiveBoard(new LiveBoard.RowSource() {
+            @Override
+            public Object[][] rows() {
+                Object[][] rows = new Object[processed.length + 1][];
+                rows[0] = new Object[] { "Job", "Processed" };
+                for (int j = 0; j < processed.length; j++) {
+                    rows[j + 1] = new Object[] { "Job-" + j, processed[j] };
+                }
+                return rows;
+            }
+        }, stdout).setFrameRate(10).start();
+        for (int i = 0; i < 20; i++) {
+            for (int j = 0; j < processed.length; j++) {
+                processed[j] += (j + 1) * 100;
+            }
+            try {
+                Thread.sleep(50);
+            }
+            catch (InterruptedException ex) {
+                ;
+            }
+        }
+        board.stop();
+
+        System.out.println("\nRender Metrics\n");
+        TextTable.setMetricsListener(new MetricsListener() {
+            @Override
+            public void rendered(TextTable table, RenderMetrics metrics) {
+                System.out.println(metrics);
+            }
+        });
+        table2.setBorderStyle(BorderStyle.BASIC).render();
+        TextTable.setMetricsListener(null);
+
         Utils.testWrapWord("abc def", 3);
         Utils.testWrapWord("abcdef", 3);
         Utils.testWrapWord("this is a line", 5);